@@ -0,0 +1,142 @@
+package com.yullage.nlp.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes whatever requests are waiting on a queue and tags all their lines as one batch with its own tagger. If the
+ * batch fails, its requests are tagged one by one, so that only the failing requests fail. Every request taken from
+ * the queue is completed or failed, even when tagging throws an Error, so that no caller is left waiting.
+ * <p>
+ * Used by the workers of {@link TaggingServer} and {@link TaggingService}.
+ *
+ * @param <R> Type of the requests.
+ * @author Yu-chun Huang
+ */
+abstract class BatchWorker<R> implements Runnable {
+    final Tagger tagger;
+    private final BlockingQueue<R> requests;
+    private final int batchSize;
+
+    // Requests at the start of the batch which are already completed or failed.
+    private int doneCount = 0;
+
+    BatchWorker(Tagger tagger, BlockingQueue<R> requests, int batchSize) {
+        this.tagger = tagger;
+        this.requests = requests;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * @return Whether to stop once the queue is empty.
+     */
+    abstract boolean isStopping();
+
+    abstract List<String> lines(R request);
+
+    /**
+     * @return Whether the request no longer needs its lines tagged.
+     */
+    boolean isCancelled(R request) {
+        return false;
+    }
+
+    /**
+     * @param taggedLines The tagged lines of the request, in input order.
+     */
+    abstract void complete(R request, List<TaggedLine> taggedLines) throws Exception;
+
+    abstract void fail(R request, Throwable t);
+
+    @Override
+    public void run() {
+        List<R> batch = new ArrayList<R>(batchSize);
+        try {
+            while (!isStopping() || !requests.isEmpty()) {
+                R first = requests.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                requests.drainTo(batch, batchSize - 1);
+
+                doneCount = 0;
+                try {
+                    tagBatch(batch);
+                } catch (Throwable t) {
+                    // Errors such as OutOfMemoryError too: the rest of the batch is answered and the worker goes on.
+                    System.err.println("Failed to tag a batch: " + t);
+                    t.printStackTrace();
+                    for (R request : batch.subList(doneCount, batch.size())) {
+                        fail(request, t);
+                    }
+                } finally {
+                    batch.clear();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void tagBatch(List<R> batch) {
+        // Requests cancelled from here on are tagged anyway.
+        Iterator<R> it = batch.iterator();
+        while (it.hasNext()) {
+            if (isCancelled(it.next())) {
+                it.remove();
+            }
+        }
+
+        List<String> lines = new ArrayList<String>();
+        for (R request : batch) {
+            lines.addAll(lines(request));
+        }
+
+        List<TaggedLine> taggedLines;
+        try {
+            taggedLines = tagger.tagBatch(lines);
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                fail(batch.get(0), e);
+                doneCount++;
+            } else {
+                tagOneByOne(batch);
+            }
+            return;
+        }
+
+        int from = 0;
+        for (R request : batch) {
+            int to = from + lines(request).size();
+            finish(request, taggedLines.subList(from, to));
+            from = to;
+        }
+    }
+
+    private void tagOneByOne(List<R> batch) {
+        for (R request : batch) {
+            List<TaggedLine> taggedLines;
+            try {
+                taggedLines = tagger.tagBatch(lines(request));
+            } catch (Exception e) {
+                fail(request, e);
+                doneCount++;
+                continue;
+            }
+            finish(request, taggedLines);
+        }
+    }
+
+    private void finish(R request, List<TaggedLine> taggedLines) {
+        try {
+            complete(request, taggedLines);
+        } catch (Exception e) {
+            fail(request, e);
+        }
+        doneCount++;
+    }
+}
@@ -0,0 +1,446 @@
+package com.yullage.nlp.util;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.ParameterException;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.ling.HasWord;
+import edu.stanford.nlp.ling.TaggedWord;
+import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
+import edu.stanford.nlp.process.CoreLabelTokenFactory;
+import edu.stanford.nlp.process.DocumentPreprocessor;
+import edu.stanford.nlp.process.PTBTokenizer;
+import edu.stanford.nlp.process.TokenizerFactory;
+import edu.stanford.nlp.tagger.maxent.MaxentTagger;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreebankLanguagePack;
+import edu.stanford.nlp.util.Function;
+import edu.stanford.nlp.util.ReflectionLoading;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Measures the throughput and allocation rate of each tagging stage on its own, and of both taggers end to end, over
+ * the fixed sample corpora in the "benchmark" folder. Every stage is run for a few warm-up passes over the corpus
+ * before it is measured. Allocation is measured for the benchmark thread only, so parsing is done on that thread.
+ * <p>
+ * Usage: java -cp "bin:lib/*" com.yullage.nlp.util.Benchmark [-stages tag,parse] [-resultFile bench.tsv]
+ *
+ * @author Yu-chun Huang
+ */
+public class Benchmark {
+    private static final int[] PARSE_BUCKETS = {10, 20, 40, 80};
+
+    private static TokenizerFactory<CoreLabel> ptbTokenizerFactory = PTBTokenizer.factory(new CoreLabelTokenFactory(),
+            "untokenizable=noneKeep");
+    private static Function<List<HasWord>, List<HasWord>> escaperCh = ReflectionLoading.loadByReflection("edu.stanford.nlp.trees.international.pennchinese.ChineseEscaper");
+
+    private final BenchmarkConfig config;
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final Writer nullWriter = new NullWriter();
+    private final String runId = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date());
+
+    public Benchmark(BenchmarkConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * @param args Arguments for main class
+     */
+    public static void main(String[] args) {
+        BenchmarkConfig config = new BenchmarkConfig();
+        JCommander jCommander = new JCommander(config);
+
+        try {
+            jCommander.parse(args);
+        } catch (ParameterException e) {
+            System.out.println(e.getMessage());
+            jCommander.usage();
+            return;
+        }
+
+        if (config.languages.isEmpty()) {
+            config.languages.add(LanguageType.ENGLISH);
+            config.languages.add(LanguageType.CHINESE);
+        }
+
+        try {
+            new Benchmark(config).run();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void run() throws Exception {
+        for (LanguageType language : config.languages) {
+            if (language == LanguageType.MIXED) {
+                throw new IllegalArgumentException("There is no mixed sample corpus.");
+            }
+            run(language);
+        }
+    }
+
+    private void run(final LanguageType language) throws Exception {
+        String corpusName = (language == LanguageType.CHINESE) ? "chinese.txt" : "english.txt";
+        final List<String> lines = Files.readAllLines(Paths.get(config.corpusDir, corpusName), StandardCharsets.UTF_8);
+        final List<List<HasWord>> sentences = new ArrayList<List<HasWord>>();
+        for (String line : lines) {
+            sentences.addAll(splitSentences(line, language));
+        }
+        final int tokenCount = countWords(sentences);
+
+        System.out.println(String.format("%s corpus: %d lines, %d sentences, %d tokens.", language, lines.size(),
+                sentences.size(), tokenCount));
+
+        if (isStageSelected("tokenize")) {
+            measure(language, new Stage("tokenize", "lines") {
+                @Override
+                long run() {
+                    for (String line : lines) {
+                        splitSentences(line, language);
+                    }
+                    return lines.size();
+                }
+            });
+        }
+
+        final Config taggerConfig = taggerConfig(language);
+        final List<List<TaggedWord>> taggedSentences = new ArrayList<List<TaggedWord>>();
+        if (isStageSelected("tag")) {
+            for (Path posModel : posModels(language)) {
+                final MaxentTagger posTagger = new MaxentTagger(posModel.toString());
+                measure(language, new Stage("tag " + posModel.getFileName(), "tokens") {
+                    @Override
+                    long run() {
+                        for (List<HasWord> sentence : sentences) {
+                            posTagger.tagSentence(sentence);
+                        }
+                        return tokenCount;
+                    }
+                });
+            }
+        }
+
+        if (isStageSelected("lemma") || isStageSelected("factor")) {
+            MaxentTagger posTagger = new MaxentTagger(taggerConfig.posModel);
+            for (List<HasWord> sentence : sentences) {
+                taggedSentences.add(posTagger.tagSentence(sentence));
+            }
+        }
+
+        if (isStageSelected("lemma")) {
+            measure(language, lemmaStage("lemma (uncached)", new LemmaService(lemmaConfig(taggerConfig, 0)),
+                    taggedSentences, tokenCount));
+            measure(language, lemmaStage("lemma (cached)", new LemmaService(taggerConfig), taggedSentences,
+                    tokenCount));
+        }
+
+        if (isStageSelected("factor")) {
+            LemmaService lemmaService = new LemmaService(taggerConfig);
+            final List<String[]> lemmas = new ArrayList<String[]>();
+            for (List<TaggedWord> taggedSentence : taggedSentences) {
+                String[] sentenceLemmas = new String[taggedSentence.size()];
+                for (int i = 0; i < sentenceLemmas.length; i++) {
+                    TaggedWord tw = taggedSentence.get(i);
+                    sentenceLemmas[i] = lemmaService.lemma(tw.word(), tw.tag());
+                }
+                lemmas.add(sentenceLemmas);
+            }
+
+            List<FactorType> factorList = Arrays.asList(FactorType.SURFACE, FactorType.LEMMA_POS, FactorType.POS);
+            final FactorEmitter factorEmitter = new FactorEmitter(factorList, taggerConfig.factorDelimiter,
+                    taggerConfig.factorInnerDelimiter);
+            final PosRules posRules = new PosRules(taggerConfig);
+            final StringBuilder sb = new StringBuilder();
+            measure(language, new Stage("factor", "tokens") {
+                @Override
+                long run() {
+                    for (int i = 0; i < taggedSentences.size(); i++) {
+                        List<TaggedWord> taggedSentence = taggedSentences.get(i);
+                        String[] sentenceLemmas = lemmas.get(i);
+                        sb.setLength(0);
+                        for (int j = 0; j < sentenceLemmas.length; j++) {
+                            TaggedWord tw = taggedSentence.get(j);
+                            factorEmitter.emit(sb, tw.word(), sentenceLemmas[j],
+                                    posRules.lookup(language, tw.tag()).tag(tw.word()));
+                            sb.append(' ');
+                        }
+                    }
+                    return tokenCount;
+                }
+            });
+        }
+
+        if (isStageSelected("parse") || isStageSelected("tree")) {
+            final LexicalizedParser parser = LexicalizedParser.loadModel(taggerConfig.grammarModel,
+                    ModelRegistry.parserOptions(language, PARSE_BUCKETS[PARSE_BUCKETS.length - 1]));
+            final List<Tree> trees = new ArrayList<Tree>();
+
+            int minLength = 1;
+            for (int maxLength : PARSE_BUCKETS) {
+                final List<List<HasWord>> bucket = new ArrayList<List<HasWord>>();
+                for (List<HasWord> sentence : sentences) {
+                    if ((sentence.size() >= minLength) && (sentence.size() <= maxLength)) {
+                        bucket.add(sentence);
+                    }
+                }
+                String stageName = "parse " + minLength + "-" + maxLength + " words";
+                minLength = maxLength + 1;
+
+                if (bucket.isEmpty()) {
+                    continue;
+                }
+
+                if (isStageSelected("parse")) {
+                    measure(language, new Stage(stageName, "sentences") {
+                        @Override
+                        long run() {
+                            for (List<HasWord> sentence : bucket) {
+                                parser.parse(sentence);
+                            }
+                            return bucket.size();
+                        }
+                    });
+                }
+
+                for (List<HasWord> sentence : bucket) {
+                    trees.add(parser.parse(sentence));
+                }
+            }
+
+            if (isStageSelected("tree")) {
+                final TreebankLanguagePack tlp = parser.getOp().langpack();
+                final TreeSerializer treeSerializer = new TreeSerializer(true, false);
+                measure(language, new Stage("tree", "trees") {
+                    @Override
+                    long run() throws IOException {
+                        for (Tree tree : trees) {
+                            treeSerializer.write(treeSerializer.prepare(tree, tlp), nullWriter);
+                        }
+                        return trees.size();
+                    }
+                });
+            }
+        }
+
+        if (isStageSelected("factorTagger")) {
+            measureTagger(language, "factorTagger", new FactorTagger(taggerConfig), lines);
+        }
+
+        if (isStageSelected("treeTagger")) {
+            measureTagger(language, "treeTagger", new TreeTagger(taggerConfig), lines);
+        }
+    }
+
+    private boolean isStageSelected(String stage) {
+        return config.stages.isEmpty() || config.stages.contains(stage);
+    }
+
+    /**
+     * @return Tagger options matching the usual command line of each language.
+     */
+    private Config taggerConfig(LanguageType language) {
+        Config taggerConfig = new Config();
+        taggerConfig.language = language;
+        taggerConfig.factorList = "surface lemma-pos pos";
+        taggerConfig.adjFormDictionary = config.adjFormDictionary;
+        if (language == LanguageType.CHINESE) {
+            taggerConfig.posModel = config.posModelCh;
+            taggerConfig.grammarModel = config.grammarModelCh;
+        } else {
+            taggerConfig.posModel = config.posModel;
+            taggerConfig.grammarModel = config.grammarModel;
+            taggerConfig.spNnPosProcess = true;
+            taggerConfig.spVbPosProcess = true;
+            taggerConfig.spLemmaProcess = true;
+        }
+        return taggerConfig;
+    }
+
+    private static Config lemmaConfig(Config taggerConfig, int lemmaCacheSize) {
+        Config lemmaConfig = new Config();
+        lemmaConfig.language = taggerConfig.language;
+        lemmaConfig.adjFormDictionary = taggerConfig.adjFormDictionary;
+        lemmaConfig.spLemmaProcess = taggerConfig.spLemmaProcess;
+        lemmaConfig.lemmaCacheSize = lemmaCacheSize;
+        return lemmaConfig;
+    }
+
+    /**
+     * @return POS models in the model folder for the language, by file name.
+     */
+    private List<Path> posModels(LanguageType language) throws IOException {
+        List<Path> posModels = new ArrayList<Path>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(config.posModelDir), "*.tagger");
+        try {
+            for (Path posModel : stream) {
+                boolean isChinese = posModel.getFileName().toString().startsWith("chinese");
+                if (isChinese == (language == LanguageType.CHINESE)) {
+                    posModels.add(posModel);
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        Collections.sort(posModels);
+        return posModels;
+    }
+
+    private static List<List<HasWord>> splitSentences(String line, LanguageType language) {
+        DocumentPreprocessor docPreprocessor = new DocumentPreprocessor(new StringReader(line));
+        docPreprocessor.setTokenizerFactory(ptbTokenizerFactory);
+        docPreprocessor.setSentenceFinalPuncWords(FactorTagger.DEFAULT_SENTENCE_DELIMS);
+        if (language == LanguageType.CHINESE) {
+            docPreprocessor.setEscaper(escaperCh);
+        }
+
+        List<List<HasWord>> sentences = new ArrayList<List<HasWord>>();
+        for (List<HasWord> sentence : docPreprocessor) {
+            sentences.add(sentence);
+        }
+        return sentences;
+    }
+
+    private static int countWords(List<? extends List<?>> sentences) {
+        int count = 0;
+        for (List<?> sentence : sentences) {
+            count += sentence.size();
+        }
+        return count;
+    }
+
+    private static Stage lemmaStage(String name, final LemmaService lemmaService,
+                                    final List<List<TaggedWord>> taggedSentences, final int tokenCount) {
+        return new Stage(name, "tokens") {
+            @Override
+            long run() {
+                for (List<TaggedWord> taggedSentence : taggedSentences) {
+                    for (TaggedWord tw : taggedSentence) {
+                        lemmaService.lemma(tw.word(), tw.tag());
+                    }
+                }
+                return tokenCount;
+            }
+        };
+    }
+
+    private void measureTagger(LanguageType language, String name, Tagger tagger, List<String> lines)
+            throws Exception {
+        try {
+            measure(language, lineStage(name, tagger, lines));
+        } finally {
+            tagger.close();
+        }
+    }
+
+    private Stage lineStage(String name, final Tagger tagger, final List<String> lines) {
+        return new Stage(name, "lines") {
+            @Override
+            long run() {
+                for (String line : lines) {
+                    tagger.tagSingleLine(line, nullWriter);
+                }
+                return lines.size();
+            }
+        };
+    }
+
+    private void measure(LanguageType language, Stage stage) throws Exception {
+        for (int i = 0; i < config.warmupIterations; i++) {
+            stage.run();
+        }
+
+        long ops = 0;
+        long nanos = 0;
+        long bytes = 0;
+        double minThroughput = Double.MAX_VALUE;
+        double maxThroughput = 0;
+        for (int i = 0; i < config.iterations; i++) {
+            long startBytes = allocatedBytes();
+            long start = System.nanoTime();
+            long iterationOps = stage.run();
+            long iterationNanos = System.nanoTime() - start;
+            bytes += allocatedBytes() - startBytes;
+
+            ops += iterationOps;
+            nanos += iterationNanos;
+            double throughput = iterationOps * 1e9 / iterationNanos;
+            minThroughput = Math.min(minThroughput, throughput);
+            maxThroughput = Math.max(maxThroughput, throughput);
+        }
+
+        double throughput = ops * 1e9 / nanos;
+        boolean isAllocationKnown = (allocatedBytes() >= 0);
+        double allocationRate = isAllocationKnown ? (bytes / 1048576.0) / (nanos / 1e9) : Double.NaN;
+        double bytesPerOp = isAllocationKnown ? (double) bytes / ops : Double.NaN;
+
+        System.out.println(String.format("  %-48s %12.1f %s/sec (min %.1f, max %.1f)  %8.1f MB/sec  %10.0f bytes/%s",
+                stage.name, throughput, stage.unit, minThroughput, maxThroughput, allocationRate, bytesPerOp,
+                stage.unit.substring(0, stage.unit.length() - 1)));
+
+        if (config.resultFile != null) {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(config.resultFile, true), "UTF-8");
+            try {
+                writer.write(String.format("%s\t%s\t%s\t%s\t%.1f\t%.1f\t%.1f\t%.1f\t%.0f\n", runId, language,
+                        stage.name, stage.unit, throughput, minThroughput, maxThroughput, allocationRate, bytesPerOp));
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * @return Bytes allocated by the current thread so far, or -1 if the JVM does not tell.
+     */
+    private long allocatedBytes() {
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * One pass of a stage over the corpus.
+     */
+    private abstract static class Stage {
+        final String name;
+        final String unit;
+
+        Stage(String name, String unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        /**
+         * @return Number of lines, sentences or tokens processed, in the unit of the stage.
+         */
+        abstract long run() throws Exception;
+    }
+
+    /**
+     * Discards everything written to it, so only the tagging is measured.
+     */
+    private static class NullWriter extends Writer {
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
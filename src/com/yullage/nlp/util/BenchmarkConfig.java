@@ -0,0 +1,51 @@
+/**
+ *
+ */
+package com.yullage.nlp.util;
+
+import com.beust.jcommander.Parameter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Yu-chun Huang
+ *
+ */
+public class BenchmarkConfig {
+	@Parameter(names = "-corpusDir", description = "Folder of the sample corpora, \"english.txt\" and \"chinese.txt\".")
+	public String corpusDir = "benchmark";
+
+	@Parameter(names = "-languages", description = "Languages to benchmark. Currently, \"chinese\" and \"english\" are supported.", converter = LanguageTypeConverter.class)
+	public List<LanguageType> languages = new ArrayList<LanguageType>();
+
+	@Parameter(names = "-stages", description = "Stages to benchmark. Available stages are \"tokenize\", \"tag\", \"lemma\", \"factor\", \"parse\", \"tree\", \"factorTagger\" and \"treeTagger\". All stages are run by default.")
+	public List<String> stages = new ArrayList<String>();
+
+	@Parameter(names = "-posModelDir", description = "Folder of the POS models. The tag stage is run with every model in it.")
+	public String posModelDir = "models_pos";
+
+	@Parameter(names = "-posModel", description = "English POS model file name used by the later stages.")
+	public String posModel = "models_pos/wsj-0-18-left3words-nodistsim.tagger";
+
+	@Parameter(names = "-posModelCh", description = "Chinese POS model file name used by the later stages.")
+	public String posModelCh = "models_pos/chinese-nodistsim.tagger";
+
+	@Parameter(names = "-grammarModel", description = "English grammar model file name.")
+	public String grammarModel = "models_parser/englishPCFG.ser.gz";
+
+	@Parameter(names = "-grammarModelCh", description = "Chinese grammar model file name.")
+	public String grammarModelCh = "models_parser/chinesePCFG.ser.gz";
+
+	@Parameter(names = "-adjFormDictionary", description = "ADJ forms dictionary file name.")
+	public String adjFormDictionary = "dictionary/adj-forms.dict";
+
+	@Parameter(names = "-warmupIterations", description = "Number of warm-up passes over the corpus before measuring each stage.")
+	public int warmupIterations = 2;
+
+	@Parameter(names = "-iterations", description = "Number of measured passes over the corpus for each stage.")
+	public int iterations = 5;
+
+	@Parameter(names = "-resultFile", description = "Tab separated file the results are appended to, so runs can be compared over time.")
+	public String resultFile;
+}
@@ -6,14 +6,16 @@ import com.beust.jcommander.ParameterException;
 import java.io.*;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Arrays;
-import java.util.EnumSet;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * @author Yu-chun Huang
  */
 public class Boot {
     private static Tagger tagger;
+    private static CorpusIo corpusIo;
 
     /**
      * @param args Arguments for main class
@@ -35,110 +37,457 @@ public class Boot {
             return;
         }
 
+        if ((config.taggerType == TaggerType.JOINT) && (config.manifest != null)) {
+            System.out.println("The joint tagger does not support the manifest.");
+            return;
+        }
+
+        if (config.language == LanguageType.MIXED) {
+            // Chinese lines would otherwise only fail when the first of them is tagged.
+            if ((config.taggerType == TaggerType.FACTOR) || (config.posModel != null)) {
+                if (config.posModelCh == null) {
+                    System.out.println("Mixed language needs a Chinese POS model (-posModelCh).");
+                    return;
+                }
+            }
+            if ((config.taggerType != TaggerType.FACTOR) && (config.grammarModelCh == null)) {
+                System.out.println("Mixed language needs a Chinese grammar model (-grammarModelCh).");
+                return;
+            }
+        }
+
+        if ((config.parseFallback == ParseFallback.TAGGED) && ((config.posModel == null)
+                || ((config.language == LanguageType.MIXED) && (config.posModelCh == null)))) {
+            System.out.println("The tagged parse fallback needs a POS model.");
+            return;
+        }
+
+        try {
+            // Read the rules once before anything is loaded, so that a bad rules file fails the run right away.
+            new PosRules(config);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+
+        if ((config.io == IoType.FILE) && (config.processes > 1) && !config.processWorker) {
+            // The models are only loaded by the worker processes.
+            new ProcessCoordinator(config, args).run();
+            return;
+        }
+
         if (config.taggerType == TaggerType.FACTOR) {
             tagger = new FactorTagger(config);
         } else if (config.taggerType == TaggerType.TREE) {
             tagger = new TreeTagger(config);
+        } else if (config.taggerType == TaggerType.JOINT) {
+            tagger = new JointTagger(config);
         } else {
             throw new IllegalArgumentException("No such tagger.");
         }
 
-        if (config.io == IoType.FILE) {
+        if (config.processWorker) {
+            try {
+                new ProcessWorker(config, tagger).run();
+            } catch (Throwable t) {
+                // Exit, so that the coordinator sees the crash and restarts the worker.
+                t.printStackTrace();
+                System.exit(1);
+            }
+            tagger.printStats(System.err);
+        } else if (config.io == IoType.FILE) {
             fileTagger(config);
         } else if (config.io == IoType.STDIO) {
-            stdioTagger();
-        }
-    }
-
-    private static void stdioTagger() {
-        try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
-            Writer writer = new OutputStreamWriter(System.out, "UTF-8");
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                tagger.tagSingleLine(line, writer);
-                System.out.print("\n");
+            new StdioPipeline(config, tagger).run();
+            tagger.printStats(System.err);
+        } else if (config.io == IoType.SERVER) {
+            try {
+                new TaggingServer(config, tagger).run();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-
-            reader.close();
-            writer.close();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+        tagger.close();
     }
 
-    private static void fileTagger(Config config) {
-        final boolean isWritePosDir = (config.taggerType == TaggerType.FACTOR);
+    /**
+     * Find the source files and create the target directories.
+     */
+    static List<SourceFile> sourceFiles(Config config) {
+        final boolean isWritePosDir = (config.taggerType == TaggerType.FACTOR)
+                || (config.taggerType == TaggerType.JOINT);
+        final boolean isWriteTreeDir = (config.taggerType == TaggerType.JOINT);
         final Path source = Paths.get(config.sourcePath);
         final Path targetAll = Paths.get(config.targetPathAll);
         final Path targetPos = Paths.get(config.targetPathPos);
+        final Path targetTree = isWriteTreeDir ? Paths.get(config.targetPathTree) : null;
+        final List<SourceFile> sourceFiles = new ArrayList<SourceFile>();
+        final boolean isGzipOutput = config.gzipOutput;
 
         FileVisitor<Path> fileVisitor = new SimpleFileVisitor<Path>() {
             @Override
             public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                Path targetDirAll = targetAll.resolve(source.relativize(dir));
-                Path targetDirPos = null;
+                copyDirectory(dir, targetAll.resolve(source.relativize(dir)));
                 if (isWritePosDir) {
-                    targetDirPos = targetPos.resolve(source.relativize(dir));
+                    copyDirectory(dir, targetPos.resolve(source.relativize(dir)));
                 }
-                try {
-                    Files.copy(dir, targetDirAll);
-                    if (targetDirPos != null) {
-                        Files.copy(dir, targetDirPos);
-                    }
-                } catch (FileAlreadyExistsException e) {
-                    if (!Files.isDirectory(targetDirAll))
-                        throw e;
+                if (isWriteTreeDir) {
+                    copyDirectory(dir, targetTree.resolve(source.relativize(dir)));
                 }
                 return FileVisitResult.CONTINUE;
             }
 
             @Override
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                Path fileAll = targetAll.resolve(source.relativize(file));
+                Path output = CorpusIo.outputPath(source.relativize(file), isGzipOutput);
+                Path fileAll = targetAll.resolve(output);
                 Path filePos = null;
                 if (isWritePosDir) {
-                    filePos = targetPos.resolve(source.relativize(file));
+                    filePos = targetPos.resolve(output);
+                }
+                Path fileTree = null;
+                if (isWriteTreeDir) {
+                    fileTree = targetTree.resolve(output);
                 }
 
-                Reader reader = null;
-                Writer writerAll = null;
-                Writer writerPos = null;
+                sourceFiles.add(new SourceFile(file, source.relativize(file).toString(), fileAll, filePos, fileTree,
+                        attrs.size()));
+                return FileVisitResult.CONTINUE;
+            }
+        };
+
+        try {
+            Files.walkFileTree(source, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, fileVisitor);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return sourceFiles;
+    }
+
+    /**
+     * Create a target directory, unless it already exists.
+     */
+    private static void copyDirectory(Path dir, Path targetDir) throws IOException {
+        try {
+            Files.copy(dir, targetDir);
+        } catch (FileAlreadyExistsException e) {
+            if (!Files.isDirectory(targetDir))
+                throw e;
+        }
+    }
+
+    private static void fileTagger(Config config) {
+        List<SourceFile> sourceFiles = sourceFiles(config);
+        corpusIo = new CorpusIo(config);
+
+        FileManifest fileManifest = null;
+        if (config.manifest != null) {
+            try {
+                fileManifest = new FileManifest(Paths.get(config.manifest),
+                        SentenceCache.fingerprint(tagger.fingerprint(), config.autoSplitSentence));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+        final FileManifest manifest = fileManifest;
+        final int checkpointLines = Math.max(1, config.checkpointLines);
+        final boolean isSplitSentence = config.autoSplitSentence;
+        final long chunkSize = config.chunkSize * 1024L * 1024L;
+
+        List<FileTask> tasks = new ArrayList<FileTask>();
+        for (final SourceFile sourceFile : sourceFiles) {
+            if ((chunkSize > 0) && (sourceFile.size > chunkSize) && !CorpusIo.isGzip(sourceFile.file)) {
                 try {
-                    reader = new InputStreamReader(new FileInputStream(file.toString()), "UTF-8");
-                    writerAll = new OutputStreamWriter(new FileOutputStream(fileAll.toString()), "UTF-8");
-                    if (filePos != null) {
-                        writerPos = new OutputStreamWriter(new FileOutputStream(filePos.toString()), "UTF-8");
-                    }
+                    addChunkTasks(tasks, sourceFile, chunkSize, manifest, isSplitSentence);
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
+            } else {
+                tasks.add(new FileTask(sourceFile.size) {
+                    @Override
+                    void run(Tagger workerTagger) throws IOException {
+                        if (manifest != null) {
+                            tagFile(workerTagger, sourceFile, manifest, checkpointLines, isSplitSentence);
+                        } else {
+                            tagFile(workerTagger, sourceFile);
+                        }
+                    }
+                });
+            }
+        }
 
-                tagger.tagMultiLine(reader, Arrays.asList(writerAll, writerPos));
+        // Largest files first, so that a huge file does not start last and hold up the whole run.
+        Collections.sort(tasks, new Comparator<FileTask>() {
+            @Override
+            public int compare(FileTask t1, FileTask t2) {
+                return Long.compare(t2.size, t1.size);
+            }
+        });
 
-                if (reader != null) {
-                    reader.close();
-                }
+        int numThreads = Math.max(1, Math.min(config.threads, tasks.size()));
+        final BlockingQueue<Tagger> taggers = new ArrayBlockingQueue<Tagger>(numThreads);
+        taggers.add(tagger);
+        for (int i = 1; i < numThreads; i++) {
+            taggers.add(tagger.fork());
+        }
 
-                if (writerAll != null) {
-                    writerAll.close();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (final FileTask task : tasks) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Tagger workerTagger = taggers.take();
+                    try {
+                        task.run(workerTagger);
+                    } finally {
+                        taggers.put(workerTagger);
+                    }
+                    return null;
                 }
+            }));
+        }
+        executor.shutdown();
 
-                if (writerPos != null) {
-                    writerPos.close();
-                }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
 
-                return FileVisitResult.CONTINUE;
+        if (manifest != null) {
+            try {
+                manifest.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        };
+        }
+
+        System.err.println("All files tagged.");
+        tagger.printStats(System.err);
+    }
 
+    private static void tagFile(Tagger fileTagger, SourceFile sourceFile) throws IOException {
+        Reader reader = null;
+        Writer writerAll = null;
+        Writer writerPos = null;
+        Writer writerTree = null;
         try {
-            Files.walkFileTree(source, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, fileVisitor);
+            reader = corpusIo.openReader(sourceFile.file);
+            writerAll = corpusIo.openWriter(sourceFile.fileAll);
+            if (sourceFile.filePos != null) {
+                writerPos = corpusIo.openWriter(sourceFile.filePos);
+            }
+            if (sourceFile.fileTree != null) {
+                writerTree = corpusIo.openWriter(sourceFile.fileTree);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
 
-        System.out.println("All files tagged.");
+        fileTagger.tagMultiLine(reader, Arrays.asList(writerAll, writerPos, writerTree));
+
+        if (reader != null) {
+            reader.close();
+        }
+
+        if (writerAll != null) {
+            writerAll.close();
+        }
+
+        if (writerPos != null) {
+            writerPos.close();
+        }
+
+        if (writerTree != null) {
+            writerTree.close();
+        }
+    }
+
+    /**
+     * Split a file larger than the chunk size into chunks, which are tagged as separate tasks.
+     */
+    private static void addChunkTasks(List<FileTask> tasks, final SourceFile sourceFile, long chunkSize,
+                                      final FileManifest manifest, boolean isSplitSentence) throws IOException {
+        if ((manifest != null)
+                && manifest.isDone(sourceFile.path, sourceFile.file, sourceFile.fileAll, sourceFile.filePos)) {
+            System.err.println("Skipped " + sourceFile.path + ", already tagged.");
+            return;
+        }
+
+        final ChunkedFile chunkedFile = new ChunkedFile(sourceFile.file, sourceFile.fileAll, sourceFile.filePos,
+                sourceFile.fileTree, chunkSize, corpusIo, isSplitSentence);
+        for (int i = 0; i < chunkedFile.chunkCount(); i++) {
+            final int chunk = i;
+            tasks.add(new FileTask(chunkedFile.chunkSize(chunk)) {
+                @Override
+                void run(Tagger workerTagger) throws IOException {
+                    if (chunkedFile.tagChunk(workerTagger, chunk) && (manifest != null)) {
+                        long sizePos = (sourceFile.filePos != null) ? Files.size(sourceFile.filePos) : -1;
+                        manifest.markDone(sourceFile.path, sourceFile.file, null, chunkedFile.lineCount(),
+                                Files.size(sourceFile.fileAll), sizePos);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Tag a file in segments of checkpointLines lines and record a checkpoint in the manifest after each segment. The
+     * file is skipped if the manifest says its outputs are still valid, and resumed from its last checkpoint if a
+     * previous run was interrupted. The outputs are the same as those of the whole file in one go, however the file is
+     * cut into segments.
+     *
+     * @param isSplitSentence Whether sentences are split into separate lines, so that the segments are written through
+     *                        a {@link PartWriter}.
+     */
+    private static void tagFile(Tagger fileTagger, final SourceFile sourceFile, FileManifest manifest,
+                                int checkpointLines, boolean isSplitSentence) throws IOException {
+        if (manifest.isDone(sourceFile.path, sourceFile.file, sourceFile.fileAll, sourceFile.filePos)) {
+            System.err.println("Skipped " + sourceFile.path + ", already tagged.");
+            return;
+        }
+
+        FileManifest.Checkpoint checkpoint = manifest.checkpoint(sourceFile.path, sourceFile.file, sourceFile.fileAll,
+                sourceFile.filePos);
+        long lineCount = 0;
+        MessageDigest digest = FileManifest.newDigest();
+
+        BufferedReader br = null;
+        FileOutputStream outAll = null;
+        FileOutputStream outPos = null;
+        try {
+            br = corpusIo.openReader(sourceFile.file, digest);
+            outAll = new FileOutputStream(sourceFile.fileAll.toString(), checkpoint != null);
+            if (sourceFile.filePos != null) {
+                outPos = new FileOutputStream(sourceFile.filePos.toString(), checkpoint != null);
+            }
+
+            if (checkpoint != null) {
+                outAll.getChannel().truncate(checkpoint.sizeAll);
+                if (outPos != null) {
+                    outPos.getChannel().truncate(checkpoint.sizePos);
+                }
+                while ((lineCount < checkpoint.lines) && (br.readLine() != null)) {
+                    lineCount++;
+                }
+                System.err.println("Resuming " + sourceFile.path + " at line " + lineCount + ".");
+            }
+
+            int segmentLines;
+            do {
+                StringBuilder segment = new StringBuilder();
+                String line;
+                segmentLines = 0;
+                while ((segmentLines < checkpointLines) && ((line = br.readLine()) != null)) {
+                    segment.append(line).append('\n');
+                    segmentLines++;
+                }
+
+                if (segmentLines > 0) {
+                    tagSegment(fileTagger, segment.toString(), sourceFile, outAll, outPos, isSplitSentence);
+                }
+                lineCount += segmentLines;
+                if ((segmentLines < checkpointLines) && (outAll.getChannel().size() == 0)) {
+                    // No segment wrote anything: write what the taggers write for a file without any sentence.
+                    tagSegment(fileTagger, "", sourceFile, outAll, outPos, false);
+                }
+
+                outAll.getChannel().force(false);
+                long sizeAll = outAll.getChannel().size();
+                long sizePos = -1;
+                if (outPos != null) {
+                    outPos.getChannel().force(false);
+                    sizePos = outPos.getChannel().size();
+                }
+
+                if (segmentLines == checkpointLines) {
+                    manifest.markPartial(sourceFile.path, sourceFile.file, lineCount, sizeAll, sizePos);
+                } else {
+                    // The whole file has been read, skipped lines included.
+                    manifest.markDone(sourceFile.path, sourceFile.file, digest, lineCount, sizeAll, sizePos);
+                }
+            } while (segmentLines == checkpointLines);
+        } finally {
+            if (br != null) {
+                br.close();
+            }
+            if (outAll != null) {
+                outAll.close();
+            }
+            if (outPos != null) {
+                outPos.close();
+            }
+        }
+    }
+
+    private static void tagSegment(Tagger fileTagger, String segment, final SourceFile sourceFile,
+                                   final FileOutputStream outAll, final FileOutputStream outPos,
+                                   boolean isSplitSentence) throws IOException {
+        Writer writerAll;
+        Writer writerPos = null;
+        if (isSplitSentence) {
+            writerAll = new PartWriter() {
+                @Override
+                Writer open() {
+                    return corpusIo.openWriter(outAll.getChannel(), false, CorpusIo.isGzip(sourceFile.fileAll));
+                }
+            };
+            if (outPos != null) {
+                writerPos = new PartWriter() {
+                    @Override
+                    Writer open() {
+                        return corpusIo.openWriter(outPos.getChannel(), false, CorpusIo.isGzip(sourceFile.filePos));
+                    }
+                };
+            }
+        } else {
+            writerAll = corpusIo.openWriter(outAll.getChannel(), false, CorpusIo.isGzip(sourceFile.fileAll));
+            if (outPos != null) {
+                writerPos = corpusIo.openWriter(outPos.getChannel(), false, CorpusIo.isGzip(sourceFile.filePos));
+            }
+        }
+        fileTagger.tagMultiLine(new StringReader(segment), Arrays.asList(writerAll, writerPos));
+    }
+
+    /**
+     * A whole file or a chunk of a file to be tagged by a worker.
+     */
+    private abstract static class FileTask {
+        final long size;
+
+        FileTask(long size) {
+            this.size = size;
+        }
+
+        abstract void run(Tagger workerTagger) throws IOException;
+    }
+
+    /**
+     * A source corpus file together with its output locations.
+     */
+    static class SourceFile {
+        final Path file;
+        final String path;
+        final Path fileAll;
+        final Path filePos;
+        final Path fileTree;
+        final long size;
+
+        SourceFile(Path file, String path, Path fileAll, Path filePos, Path fileTree, long size) {
+            this.file = file;
+            this.path = path;
+            this.fileAll = fileAll;
+            this.filePos = filePos;
+            this.fileTree = fileTree;
+            this.size = size;
+        }
     }
 }
@@ -0,0 +1,242 @@
+package com.yullage.nlp.util;
+
+import edu.stanford.nlp.ling.HasWord;
+import edu.stanford.nlp.ling.TaggedWord;
+import edu.stanford.nlp.parser.common.ParserQuery;
+import edu.stanford.nlp.parser.common.ParserUtils;
+import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
+import edu.stanford.nlp.trees.LabeledScoredTreeFactory;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeFactory;
+import edu.stanford.nlp.trees.TreebankLanguagePack;
+import edu.stanford.nlp.util.RuntimeInterruptedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses one sentence at a time within a length and a time budget. A sentence longer than parseMaxLength words is not
+ * parsed at all, and a parse running longer than parseTimeout milliseconds is interrupted; the parser checks for
+ * interrupts between its chart passes. Either way, the sentence gets the tree of the configured {@link ParseFallback}
+ * instead, and the fallback is counted in the metrics.
+ * <p>
+ * A chunked fallback gets one more time budget for all its pieces together; pieces which do not fit in it are flat.
+ * Trees which depend on a timeout are marked, see {@link #isTimedOut(Tree)}, as they may differ from run to run. An
+ * instance can be shared by threads: parser queries are borrowed from the {@link ModelRegistry} for each parse, so that
+ * no grammar is kept here.
+ *
+ * @author Yu-chun Huang
+ */
+public class BoundedParser {
+    private static final TreeFactory TREE_FACTORY = new LabeledScoredTreeFactory();
+    private static final double TIMED_OUT_SCORE = Double.NEGATIVE_INFINITY;
+    private static ScheduledThreadPoolExecutor watchdog;
+
+    private final ModelRegistry models;
+    private final TaggerMetrics metrics;
+    private final int maxLength;
+    private final long timeoutNanos;
+    private final ParseFallback fallback;
+
+    public BoundedParser(Config config, ModelRegistry models, TaggerMetrics metrics) {
+        this.models = models;
+        this.metrics = metrics;
+        this.maxLength = config.parseMaxLength;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.parseTimeout);
+        this.fallback = config.parseFallback;
+    }
+
+    /**
+     * Same as {@link LexicalizedParser#parse(List)}, but within the budgets.
+     */
+    public Tree parse(LexicalizedParser parser, LanguageType language, List<? extends HasWord> sentence) {
+        if (sentence.size() > maxLength) {
+            metrics.addParseFallback(false);
+            return fallback(parser, language, sentence);
+        }
+
+        long deadline = (timeoutNanos > 0) ? System.nanoTime() + timeoutNanos : 0;
+        Tree tree = parse(language, sentence, deadline);
+        if (tree == null) {
+            metrics.addParseFallback(true);
+            tree = fallback(parser, language, sentence);
+            tree.setScore(TIMED_OUT_SCORE);
+        }
+        return tree;
+    }
+
+    /**
+     * @return Whether the tree is a fallback, or contains one, because a parse ran out of time.
+     */
+    public static boolean isTimedOut(Tree tree) {
+        return tree.score() == TIMED_OUT_SCORE;
+    }
+
+    /**
+     * @param deadline System.nanoTime() by which the parse has to finish, or 0 for no deadline.
+     * @return The best parse, an (X ...) tree if the parser fails, or null if the deadline passed.
+     */
+    private Tree parse(LanguageType language, List<? extends HasWord> sentence, long deadline) {
+        // Borrowed first, as it may load the grammar, which must not be interrupted.
+        ParserQuery parserQuery = models.borrowParserQuery(language);
+        Alarm alarm = null;
+        try {
+            if (deadline != 0) {
+                long delay = deadline - System.nanoTime();
+                if (delay <= 0) {
+                    return null;
+                }
+                alarm = new Alarm(Thread.currentThread(), delay);
+            }
+
+            if (parserQuery.parse(sentence)) {
+                Tree bestParse = parserQuery.getBestParse();
+                // -10000 denotes unknown words
+                bestParse.setScore(parserQuery.getPCFGScore() % -10000.0);
+                return bestParse;
+            }
+        } catch (RuntimeInterruptedException e) {
+            if ((alarm == null) || !alarm.cancel()) {
+                throw e;
+            }
+            // The query starts every parse from scratch, so it is reused after an interrupted parse.
+            return null;
+        } catch (Exception e) {
+            System.err.println("Following exception caught during parsing:");
+            e.printStackTrace();
+            System.err.println("Recovering using fall through strategy: will construct an (X ...) tree.");
+        } finally {
+            if (alarm != null) {
+                alarm.cancel();
+            }
+            models.releaseParserQuery(language, parserQuery);
+        }
+
+        return ParserUtils.xTree(sentence);
+    }
+
+    private Tree fallback(LexicalizedParser parser, LanguageType language, List<? extends HasWord> sentence) {
+        if (fallback == ParseFallback.CHUNK) {
+            return chunk(parser, language, sentence);
+        }
+        return flat(language, sentence);
+    }
+
+    /**
+     * @return The words under a single X node, with their tags from the POS model for the tagged fallback, or XX
+     * otherwise.
+     */
+    private Tree flat(LanguageType language, List<? extends HasWord> sentence) {
+        if (fallback != ParseFallback.TAGGED) {
+            return ParserUtils.xTree(sentence);
+        }
+
+        List<TaggedWord> taggedSentence = models.posTagger(language).tagSentence(sentence);
+        return ParserUtils.xTree(taggedSentence);
+    }
+
+    /**
+     * @return The parses of pieces of at most half the sentence, and at most half the maximum length, cut after
+     * punctuation where possible, under a single X node.
+     */
+    private Tree chunk(LexicalizedParser parser, LanguageType language, List<? extends HasWord> sentence) {
+        TreebankLanguagePack tlp = parser.getOp().langpack();
+        int chunkLength = Math.max(1, Math.min(maxLength, sentence.size()) / 2);
+        long deadline = (timeoutNanos > 0) ? System.nanoTime() + timeoutNanos : 0;
+
+        List<Tree> kids = new ArrayList<Tree>();
+        boolean isTimedOut = false;
+        int start = 0;
+        while (start < sentence.size()) {
+            int end = Math.min(sentence.size(), start + chunkLength);
+            if (end < sentence.size()) {
+                for (int i = end - 1; i > start + chunkLength / 2; i--) {
+                    if (tlp.isPunctuationWord(sentence.get(i).word())) {
+                        end = i + 1;
+                        break;
+                    }
+                }
+            }
+
+            List<? extends HasWord> piece = sentence.subList(start, end);
+            Tree tree = parse(language, piece, deadline);
+            if (tree == null) {
+                tree = flat(language, piece);
+                isTimedOut = true;
+            }
+            String label = tree.label().value();
+            if (label.equals(tlp.startSymbol()) || label.equals("X")) {
+                for (Tree kid : tree.children()) {
+                    kids.add(kid);
+                }
+            } else {
+                kids.add(tree);
+            }
+            start = end;
+        }
+
+        Tree tree = TREE_FACTORY.newTreeNode("X", kids);
+        if (isTimedOut) {
+            tree.setScore(TIMED_OUT_SCORE);
+        }
+        return tree;
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor watchdog() {
+        if (watchdog == null) {
+            watchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "parse-watchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            watchdog.setRemoveOnCancelPolicy(true);
+        }
+        return watchdog;
+    }
+
+    /**
+     * Interrupts a parsing thread once its time is up, unless it is cancelled first.
+     */
+    private static class Alarm implements Runnable {
+        private final Thread thread;
+        private final ScheduledFuture<?> future;
+        private boolean isArmed = true;
+        private boolean isFired = false;
+
+        Alarm(Thread thread, long delayNanos) {
+            this.thread = thread;
+            this.future = watchdog().schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public synchronized void run() {
+            if (isArmed) {
+                isFired = true;
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * Disarm the alarm. If it has already fired, clear the interrupt it caused.
+         *
+         * @return Whether the alarm has fired.
+         */
+        synchronized boolean cancel() {
+            if (isArmed) {
+                isArmed = false;
+                future.cancel(false);
+                if (isFired) {
+                    Thread.interrupted();
+                }
+            }
+            return isFired;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.yullage.nlp.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.*;
+
+/**
+ * Collects output in one large buffer and writes it to a channel when it is full. In asynchronous mode, full buffers
+ * are written on a background thread, so that disk writes overlap with tagging. At most two full buffers wait for the
+ * disk; after that, writing blocks until one is free. The background thread is only started once the first buffer is
+ * full, so small files are written on the calling thread.
+ * <p>
+ * {@link #flush()} returns once everything written so far is in the channel. Not thread safe.
+ *
+ * @author Yu-chun Huang
+ */
+public class ChannelOutputStream extends OutputStream {
+    private static final int PENDING_BUFFERS = 2;
+
+    private final WritableByteChannel channel;
+    private final boolean isAsync;
+    private final boolean isCloseChannel;
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+    private ByteBuffer buffer;
+    private ExecutorService writer;
+    private volatile IOException writeError;
+
+    /**
+     * @param channel        Channel to write to.
+     * @param bufferSize     Size of each buffer in bytes.
+     * @param isAsync        Whether full buffers are written on a background thread.
+     * @param isCloseChannel Whether closing the stream also closes the channel.
+     */
+    public ChannelOutputStream(WritableByteChannel channel, int bufferSize, boolean isAsync, boolean isCloseChannel) {
+        this.channel = channel;
+        this.isAsync = isAsync;
+        this.isCloseChannel = isCloseChannel;
+        this.freeBuffers = new ArrayBlockingQueue<ByteBuffer>(PENDING_BUFFERS + 1);
+        this.buffer = ByteBuffer.allocate(Math.max(bufferSize, 16));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            writeBuffer();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buffer.hasRemaining()) {
+                writeBuffer();
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        if (isAsync) {
+            submit();
+        } else {
+            writeNow();
+        }
+    }
+
+    private void writeNow() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Hand the current buffer to the background thread and continue with a free one.
+     */
+    private void submit() throws IOException {
+        checkError();
+        if (writer == null) {
+            writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "corpus-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            for (int i = 0; i < PENDING_BUFFERS; i++) {
+                freeBuffers.add(ByteBuffer.allocate(buffer.capacity()));
+            }
+        }
+
+        final ByteBuffer full = buffer;
+        full.flip();
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (writeError == null) {
+                        while (full.hasRemaining()) {
+                            channel.write(full);
+                        }
+                    }
+                } catch (IOException e) {
+                    writeError = e;
+                } finally {
+                    full.clear();
+                    freeBuffers.add(full);
+                }
+            }
+        });
+
+        try {
+            buffer = freeBuffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (writer == null) {
+            writeNow();
+            return;
+        }
+
+        if (buffer.position() > 0) {
+            submit();
+        }
+        try {
+            writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        checkError();
+    }
+
+    private void checkError() throws IOException {
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (writer != null) {
+                writer.shutdown();
+                writer = null;
+            }
+            if (isCloseChannel) {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.yullage.nlp.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A large source file split into byte ranges which end at a line break, so that the chunks can be tagged on separate
+ * workers. Each chunk is memory-mapped and tagged into temporary part files next to the outputs. Once the last chunk
+ * is tagged, the parts are joined in order into the output files by channel to channel transfer, which gives the same
+ * output as tagging the whole file. Compressed parts are complete gzip members, so they are joined the same way.
+ *
+ * @author Yu-chun Huang
+ */
+public class ChunkedFile {
+    private static final int SCAN_BUFFER_SIZE = 1 << 16;
+
+    private final Path file;
+    private final Path fileAll;
+    private final Path filePos;
+    private final Path fileTree;
+    private final CorpusIo corpusIo;
+    private final boolean isSplitSentence;
+    private final long[] bounds;
+    private final Path[] partsAll;
+    private final Path[] partsPos;
+    private final Path[] partsTree;
+    private final AtomicInteger remaining;
+    private final AtomicLong lineCount = new AtomicLong();
+
+    /**
+     * @param file            Source file.
+     * @param fileAll         Output file for all factors.
+     * @param filePos         Output file for the POS factor, or null.
+     * @param fileTree        Output file for the trees of the joint tagger, or null.
+     * @param chunkSize       Size of a chunk in bytes. A chunk is extended to the end of the line it would cut.
+     * @param corpusIo        Opens the part files.
+     * @param isSplitSentence Whether sentences are split into separate lines, so that the parts are written through a
+     *                        {@link PartWriter}.
+     */
+    public ChunkedFile(Path file, Path fileAll, Path filePos, Path fileTree, long chunkSize, CorpusIo corpusIo,
+                       boolean isSplitSentence) throws IOException {
+        this.file = file;
+        this.fileAll = fileAll;
+        this.filePos = filePos;
+        this.fileTree = fileTree;
+        this.corpusIo = corpusIo;
+        this.isSplitSentence = isSplitSentence;
+
+        List<Long> boundList = new ArrayList<Long>();
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            long start = 0;
+            boundList.add(start);
+            while (start < size) {
+                long end = nextLineStart(channel, Math.min(size, start + chunkSize), size);
+                if (end - start > Integer.MAX_VALUE) {
+                    throw new IOException("Line longer than 2 GB at offset " + start + " of " + file + ".");
+                }
+                boundList.add(end);
+                start = end;
+            }
+        } finally {
+            channel.close();
+        }
+
+        this.bounds = new long[boundList.size()];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = boundList.get(i);
+        }
+        this.partsAll = new Path[chunkCount()];
+        this.partsPos = new Path[chunkCount()];
+        this.partsTree = new Path[chunkCount()];
+        this.remaining = new AtomicInteger(chunkCount());
+    }
+
+    /**
+     * @return Offset just after the first line break at or after pos, or the file size if there is none.
+     */
+    private static long nextLineStart(FileChannel channel, long pos, long size) throws IOException {
+        if (pos == 0) {
+            return 0;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        // Start at the byte before pos, so that a chunk already ending with a line break is not extended.
+        long offset = pos - 1;
+        while (offset < size) {
+            buffer.clear();
+            int n = channel.read(buffer, offset);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (buffer.get(i) == '\n') {
+                    return offset + i + 1;
+                }
+            }
+            offset += n;
+        }
+        return size;
+    }
+
+    public int chunkCount() {
+        return bounds.length - 1;
+    }
+
+    public long chunkSize(int chunk) {
+        return bounds[chunk + 1] - bounds[chunk];
+    }
+
+    /**
+     * @return Number of lines in the chunks tagged so far.
+     */
+    public long lineCount() {
+        return lineCount.get();
+    }
+
+    /**
+     * Tag one chunk into its part files. The worker which tags the last remaining chunk also joins the parts.
+     *
+     * @return Whether the whole file is tagged and joined.
+     */
+    public boolean tagChunk(Tagger tagger, int chunk) throws IOException {
+        MappedByteBuffer buffer;
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, bounds[chunk], chunkSize(chunk));
+        } finally {
+            channel.close();
+        }
+        lineCount.addAndGet(countLines(buffer));
+
+        partsAll[chunk] = createPart(fileAll, chunk);
+        Writer writerAll = openPart(partsAll[chunk], CorpusIo.isGzip(fileAll));
+        Writer writerPos = null;
+        if (filePos != null) {
+            partsPos[chunk] = createPart(filePos, chunk);
+            writerPos = openPart(partsPos[chunk], CorpusIo.isGzip(filePos));
+        }
+        Writer writerTree = null;
+        if (fileTree != null) {
+            partsTree[chunk] = createPart(fileTree, chunk);
+            writerTree = openPart(partsTree[chunk], CorpusIo.isGzip(fileTree));
+        }
+
+        Reader reader = new Utf8LineReader(new ByteBufferInputStream(buffer), corpusIo.bufferSize());
+        try {
+            tagger.tagMultiLine(reader, Arrays.asList(writerAll, writerPos, writerTree));
+        } finally {
+            reader.close();
+            writerAll.close();
+            if (writerPos != null) {
+                writerPos.close();
+            }
+            if (writerTree != null) {
+                writerTree.close();
+            }
+        }
+
+        if (remaining.decrementAndGet() > 0) {
+            return false;
+        }
+
+        join(fileAll, partsAll);
+        if (filePos != null) {
+            join(filePos, partsPos);
+        }
+        if (fileTree != null) {
+            join(fileTree, partsTree);
+        }
+        if (Files.size(fileAll) == 0) {
+            // No chunk wrote anything: write what the tagger writes for a file without any sentence.
+            writerAll = corpusIo.openWriter(fileAll);
+            writerPos = (filePos != null) ? corpusIo.openWriter(filePos) : null;
+            writerTree = (fileTree != null) ? corpusIo.openWriter(fileTree) : null;
+            tagger.tagMultiLine(new StringReader(""), Arrays.asList(writerAll, writerPos, writerTree));
+        }
+        return true;
+    }
+
+    /**
+     * @return A writer of a part file, which is left empty if the chunk has no sentence and sentences are split.
+     */
+    private Writer openPart(final Path part, final boolean isGzip) throws IOException {
+        if (!isSplitSentence) {
+            return corpusIo.openWriter(part, isGzip);
+        }
+        return new PartWriter() {
+            @Override
+            Writer open() throws IOException {
+                return corpusIo.openWriter(part, isGzip);
+            }
+        };
+    }
+
+    /**
+     * Count the lines the way {@link BufferedReader#readLine()} does for a chunk ending with a line break.
+     */
+    private long countLines(ByteBuffer buffer) {
+        long count = 0;
+        int limit = buffer.limit();
+        for (int i = 0; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                count++;
+            }
+        }
+        if ((limit > 0) && (buffer.get(limit - 1) != '\n')) {
+            count++;
+        }
+        return count;
+    }
+
+    private static Path createPart(Path target, int chunk) throws IOException {
+        return Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName() + ".part" + chunk + ".",
+                ".tmp");
+    }
+
+    private static void join(Path target, Path[] parts) throws IOException {
+        FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            for (Path part : parts) {
+                FileChannel in = FileChannel.open(part, StandardOpenOption.READ);
+                try {
+                    long size = in.size();
+                    long pos = 0;
+                    while (pos < size) {
+                        pos += in.transferTo(pos, size - pos, out);
+                    }
+                } finally {
+                    in.close();
+                }
+                Files.delete(part);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -10,18 +10,24 @@ import com.beust.jcommander.Parameter;
  *
  */
 public class Config {
-	@Parameter(names = "-taggerType", description = "Tagger type. Currently, \"factor\" and \"tree\" are supported.", converter = TaggerTypeConverter.class)
+	@Parameter(names = "-taggerType", description = "Tagger type. Currently, \"factor\", \"tree\" and \"joint\" are supported. The joint tagger parses each sentence once and writes the trees, and the factors and POS factor taken from the same parse, in one pass. Words the parser could not parse are tagged by -posModel, if set, in the factors. In stdio and server mode, it writes only the trees.", converter = TaggerTypeConverter.class)
 	public TaggerType taggerType = TaggerType.FACTOR;
 
-	@Parameter(names = "-io", description = "IO type. Currently, \"stdio\" and \"file\" are supported.", converter = IoTypeConverter.class)
+	@Parameter(names = "-io", description = "IO type. Currently, \"stdio\", \"file\" and \"server\" are supported.", converter = IoTypeConverter.class)
 	public IoType io = IoType.STDIO;
 
-	@Parameter(names = "-language", description = "Corpus language. Currently, \"chinese\" and \"english\" are supported.", converter = LanguageTypeConverter.class, required = true)
+	@Parameter(names = "-language", description = "Corpus language. Currently, \"chinese\", \"english\" and \"mixed\" are supported. Lines of a mixed corpus are routed to the Chinese or English models by their script.", converter = LanguageTypeConverter.class, required = true)
 	public LanguageType language;
 
 	@Parameter(names = "-autoSplitSentence", description = "Auto split sentences into different lines.")
 	public boolean autoSplitSentence = false;
 
+	@Parameter(names = "-streamLines", description = "Split each line into sentences while it is read and write every sentence as soon as it is tagged, so that memory use is bounded by the longest sentence rather than the longest line. Lines are tagged one at a time, without lineThreads and parse windows. With mixed language, a line is routed by its first 64K characters. Only used by the factor and tree taggers when IO type is set to file.")
+	public boolean streamLines = false;
+
+	@Parameter(names = "-pretokenized", description = "Input is already tokenized and split into sentences, one sentence per line. Lines are split on whitespace only, so the output has exactly as many tokens as the input.")
+	public boolean pretokenized = false;
+
 	@Parameter(names = "-eofMark", description = "Add \"__EOF__\\n\" to the end of output.")
 	public boolean eofMark = false;
 
@@ -43,6 +49,9 @@ public class Config {
 	@Parameter(names = "-factorList", description = "Factor list. Available factors are \"surface\", \"lemma\", \"pos\" and \"lemma-pos\". The order indicates the output factor sequence.")
 	public String factorList = "surface lemma pos";
 
+	@Parameter(names = "-posRules", description = "File of additional POS and lemma rules, applied after the special POS and lemma processes. See PosRules for the format.")
+	public String posRules;
+
 	@Parameter(names = "-treeStem", description = "Use stem in tree form.")
 	public boolean treeStem = false;
 
@@ -55,6 +64,114 @@ public class Config {
 	@Parameter(names = "-grammarModel", description = "Grammar model file name.")
 	public String grammarModel;
 
+	@Parameter(names = "-threads", description = "Number of worker threads. Only used when IO type is set to file or server, and by TaggingService.")
+	public int threads = 1;
+
+	@Parameter(names = "-processes", description = "Number of worker processes. If more than 1, files are split into blocks of processBlockLines lines, which are tagged by child JVMs. Only used when IO type is set to file.")
+	public int processes = 1;
+
+	@Parameter(names = "-processBlockLines", description = "Number of lines sent to a worker process at a time.")
+	public int processBlockLines = 1000;
+
+	@Parameter(names = "-processJvmOptions", description = "JVM options of the worker processes, separated by spaces. By default, the options of this JVM.")
+	public String processJvmOptions;
+
+	@Parameter(names = "-processWorker", description = "Run as a worker process of a coordinator.", hidden = true)
+	public boolean processWorker = false;
+
+	@Parameter(names = "-lineThreads", description = "Number of worker threads tagging the lines of one file in parallel. Only used by the factor tagger when IO type is set to file.")
+	public int lineThreads = 1;
+
+	@Parameter(names = "-lineBatchSize", description = "Number of lines handed to a worker thread at a time. Only used when lineThreads is larger than 1.")
+	public int lineBatchSize = 256;
+
+	@Parameter(names = "-parseThreads", description = "Number of parser worker threads. Only used by the tree and joint taggers.")
+	public int parseThreads = 1;
+
+	@Parameter(names = "-parseWindow", description = "Number of lines whose sentences are scheduled together, longest first, on the parser workers.")
+	public int parseWindow = 32;
+
+	@Parameter(names = "-parseMaxLength", description = "Sentences longer than this many words are not parsed but built by the parse fallback. Only used by the tree and joint taggers.")
+	public int parseMaxLength = 80;
+
+	@Parameter(names = "-parseTimeout", description = "Milliseconds a sentence may be parsed for before the parse is abandoned for the parse fallback. 0 disables the time limit. Only used by the tree and joint taggers.")
+	public long parseTimeout = 0;
+
+	@Parameter(names = "-parseFallback", description = "Tree built for a sentence over the parse length or time limit. \"flat\" puts the words, tagged XX, under a single X node. \"tagged\" does the same with the words tagged by the POS model, which has to be set and is loaded on the first fallback. \"chunk\" parses pieces of at most half the sentence and half the maximum length, cut after punctuation where possible, under a single X node; pieces out of time are flat. Only used by the tree and joint taggers.", converter = ParseFallbackConverter.class)
+	public ParseFallback parseFallback = ParseFallback.FLAT;
+
+	@Parameter(names = "-flushPolicy", description = "When stdio output is flushed. \"line\" flushes every line, \"batch\" every flushBatchSize lines and \"time\" every flushInterval milliseconds.", converter = FlushPolicyConverter.class)
+	public FlushPolicy flushPolicy = FlushPolicy.LINE;
+
+	@Parameter(names = "-flushBatchSize", description = "Number of lines between flushes. Only used when flush policy is set to batch.")
+	public int flushBatchSize = 256;
+
+	@Parameter(names = "-flushInterval", description = "Milliseconds between flushes. Only used when flush policy is set to time.")
+	public long flushInterval = 1000;
+
+	@Parameter(names = "-host", description = "Address the server listens on. Only used when IO type is set to server.")
+	public String host = "127.0.0.1";
+
+	@Parameter(names = "-port", description = "Port the server listens on. Only used when IO type is set to server.")
+	public int port = 9099;
+
+	@Parameter(names = "-serverBatchSize", description = "Maximum number of queued lines, from any connection, a server worker tags at a time. Also used by TaggingService.")
+	public int serverBatchSize = 32;
+
+	@Parameter(names = "-cacheSize", description = "Number of tagged sentences cached in memory. 0 disables the cache.")
+	public int cacheSize = 0;
+
+	@Parameter(names = "-cacheDir", description = "Folder of the on-disk sentence cache, which is kept between runs. Only used when cacheSize is larger than 0.")
+	public String cacheDir;
+
+	@Parameter(names = "-cacheDiskSize", description = "Size limit of the on-disk sentence cache in megabytes. The oldest entries are dropped beyond it.")
+	public int cacheDiskSize = 1024;
+
+	@Parameter(names = "-lemmaCacheSize", description = "Number of (word, tag) lemmas cached in memory. 0 disables the cache.")
+	public int lemmaCacheSize = 100000;
+
+	@Parameter(names = "-posModelCh", description = "Chinese POS model file name. Only used when language is set to mixed.")
+	public String posModelCh;
+
+	@Parameter(names = "-grammarModelCh", description = "Chinese grammar model file name. Only used when language is set to mixed.")
+	public String grammarModelCh;
+
+	@Parameter(names = "-modelIdleTimeout", description = "Seconds after which an unused model is unloaded. 0 keeps models loaded.")
+	public int modelIdleTimeout = 0;
+
+	@Parameter(names = "-statsFile", description = "JSON file the tagging statistics are written to every statsInterval seconds. The statistics are also published through JMX.")
+	public String statsFile;
+
+	@Parameter(names = "-statsInterval", description = "Seconds between writes of the stats file.")
+	public int statsInterval = 10;
+
+	@Parameter(names = "-slowSentenceMillis", description = "Sentences taking at least this many milliseconds to tag or parse are logged to stderr and kept in the statistics. 0 disables the log.")
+	public long slowSentenceMillis = 2000;
+
+	@Parameter(names = "-ioBufferSize", description = "Size in kilobytes of the read and write buffers of corpus files. Only used when IO type is set to file.")
+	public int ioBufferSize = 1024;
+
+	@Parameter(names = "-asyncWrite", description = "Write output files on background threads, overlapping disk writes with tagging. Only used when IO type is set to file.", arity = 1)
+	public boolean asyncWrite = true;
+
+	@Parameter(names = "-gzipOutput", description = "Compress the output as gzip. In file mode, \".gz\" is appended to the output file names. Outputs of gzipped source files, whose names end with \".gz\", are always compressed, and gzipped standard input is always detected.")
+	public boolean gzipOutput = false;
+
+	@Parameter(names = "-gzipBlockSize", description = "Size in kilobytes of the blocks which are compressed in parallel as separate gzip members.")
+	public int gzipBlockSize = 1024;
+
+	@Parameter(names = "-gzipThreads", description = "Number of threads compressing gzip output. Defaults to the number of processors.")
+	public int gzipThreads = Runtime.getRuntime().availableProcessors();
+
+	@Parameter(names = "-chunkSize", description = "Source files larger than this many megabytes are split into chunks at line breaks, which are tagged in parallel by the worker threads and joined afterwards. 0 disables chunking. Gzipped source files are never split. Only used when IO type is set to file.")
+	public int chunkSize = 0;
+
+	@Parameter(names = "-manifest", description = "Manifest file of tagged source files. When set, files whose outputs are still valid are skipped, and a file interrupted in a previous run is resumed from its last checkpoint. Only used by the factor and tree taggers when IO type is set to file.")
+	public String manifest;
+
+	@Parameter(names = "-checkpointLines", description = "Number of source lines between checkpoints inside a file. Only used when manifest is set.")
+	public int checkpointLines = 100000;
+
 	@Parameter(names = "-sourcePath", description = "Source corpus folder. Only used when IO type is set to file.")
 	public String sourcePath;
 
@@ -63,4 +180,7 @@ public class Config {
 
 	@Parameter(names = "-targetPathPos", description = "Corpus output folder for POS factor. Only used when IO type is set to file.")
 	public String targetPathPos;
+
+	@Parameter(names = "-targetPathTree", description = "Corpus output folder for trees of the joint tagger. Only used when IO type is set to file.")
+	public String targetPathTree;
 }
@@ -0,0 +1,225 @@
+package com.yullage.nlp.util;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens corpus files on top of {@link FileChannel}: sources are read with a {@link Utf8LineReader} and outputs written
+ * through a {@link ChannelOutputStream}, both with buffers of ioBufferSize kilobytes. The readers and writers returned
+ * are already buffered, and the taggers use them as they are.
+ * <p>
+ * Files whose names end with ".gz" are decompressed while they are read and compressed while they are written, the
+ * latter as a {@link ParallelGzipOutputStream} on a compressor pool shared by all writers.
+ *
+ * @author Yu-chun Huang
+ */
+public class CorpusIo {
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final int GZIP_MAGIC_1 = 0x1f;
+    private static final int GZIP_MAGIC_2 = 0x8b;
+
+    private final int bufferSize;
+    private final boolean isAsyncWrite;
+    private final int gzipBlockSize;
+    private final int gzipThreads;
+    private ExecutorService compressors;
+
+    public CorpusIo(Config config) {
+        this.bufferSize = Math.max(1, config.ioBufferSize) * 1024;
+        this.isAsyncWrite = config.asyncWrite;
+        this.gzipBlockSize = Math.max(1, config.gzipBlockSize) * 1024;
+        this.gzipThreads = Math.max(1, config.gzipThreads);
+    }
+
+    public static boolean isGzip(Path file) {
+        return file.getFileName().toString().endsWith(GZIP_SUFFIX);
+    }
+
+    /**
+     * @return The output path for a source path, with ".gz" appended when the output is to be compressed and the source
+     * is not already gzipped.
+     */
+    public static Path outputPath(Path source, boolean isGzipOutput) {
+        if (!isGzipOutput || isGzip(source)) {
+            return source;
+        }
+        return source.resolveSibling(source.getFileName() + GZIP_SUFFIX);
+    }
+
+    public BufferedReader openReader(Path file) throws IOException {
+        return openReader(file, null);
+    }
+
+    /**
+     * @param digest Digest updated with the bytes of the file as they are read, or null.
+     */
+    public BufferedReader openReader(Path file, MessageDigest digest) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        if (!isGzip(file) && (digest == null)) {
+            return new Utf8LineReader(channel, bufferSize);
+        }
+
+        try {
+            InputStream in = Channels.newInputStream(channel);
+            if (digest != null) {
+                in = new DigestInputStream(in, digest);
+            }
+            if (isGzip(file)) {
+                in = new GZIPInputStream(new MemberInputStream(in), bufferSize);
+            }
+            return new Utf8LineReader(Channels.newChannel(in), bufferSize);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public BufferedWriter openWriter(Path file) throws IOException {
+        return openWriter(file, isGzip(file));
+    }
+
+    /**
+     * @param isGzip Whether the output is compressed, whatever the file name is.
+     */
+    public BufferedWriter openWriter(Path file, boolean isGzip) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        return openWriter(channel, true, isGzip);
+    }
+
+    /**
+     * @param isCloseChannel Whether closing the writer also closes the channel.
+     * @param isGzip         Whether the output is compressed. Closing the writer ends the last gzip member, so the
+     *                       output of writers opened one after another on the same channel is still valid gzip.
+     */
+    public BufferedWriter openWriter(WritableByteChannel channel, boolean isCloseChannel, boolean isGzip) {
+        OutputStream out = openOutputStream(channel, isCloseChannel, isGzip);
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), bufferSize);
+    }
+
+    /**
+     * Same as {@link #openWriter(Path)}, for output which is already encoded.
+     */
+    public OutputStream openOutputStream(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        return openOutputStream(channel, true, isGzip(file));
+    }
+
+    private OutputStream openOutputStream(WritableByteChannel channel, boolean isCloseChannel, boolean isGzip) {
+        OutputStream out = new ChannelOutputStream(channel, bufferSize, isAsyncWrite, isCloseChannel);
+        if (isGzip) {
+            out = compressed(out);
+        }
+        return out;
+    }
+
+    /**
+     * @return A stream compressing into out in parallel blocks. Closing it closes out.
+     */
+    public synchronized OutputStream compressed(OutputStream out) {
+        if (compressors == null) {
+            compressors = Executors.newFixedThreadPool(gzipThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "gzip-compressor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return new ParallelGzipOutputStream(out, gzipBlockSize, compressors, gzipThreads * 2);
+    }
+
+    /**
+     * @return The stream itself, or a stream decompressing it if it starts with the gzip magic number. Only the first
+     * byte is waited for, and the second one only if the first matches, so plain input is passed through as soon as it
+     * arrives.
+     */
+    public static InputStream decompressed(InputStream in) throws IOException {
+        PushbackInputStream peek = new PushbackInputStream(in, 2);
+        int b1 = peek.read();
+        if (b1 != GZIP_MAGIC_1) {
+            if (b1 >= 0) {
+                peek.unread(b1);
+            }
+            return peek;
+        }
+
+        int b2 = peek.read();
+        if (b2 >= 0) {
+            peek.unread(b2);
+        }
+        peek.unread(b1);
+        if (b2 == GZIP_MAGIC_2) {
+            return new GZIPInputStream(new MemberInputStream(peek), 1 << 16);
+        }
+        return peek;
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return The reader itself if it is already buffered, otherwise a buffered reader on top of it.
+     */
+    public static BufferedReader buffered(Reader reader) {
+        return (reader instanceof BufferedReader) ? (BufferedReader) reader : new BufferedReader(reader);
+    }
+
+    /**
+     * @return The writer itself if it is already buffered, otherwise a buffered writer on top of it.
+     */
+    public static BufferedWriter buffered(Writer writer) {
+        return (writer instanceof BufferedWriter) ? (BufferedWriter) writer : new BufferedWriter(writer);
+    }
+
+    /**
+     * Reports input as available until the real end of the stream, without reading it. {@link GZIPInputStream} only
+     * looks for another member when input is available, so without this it would stop at a member boundary which
+     * happens to fall on the end of a pipe read. It then reads the next header, which waits for input only when the
+     * caller needs it anyway.
+     */
+    private static class MemberInputStream extends FilterInputStream {
+        private boolean isEof = false;
+
+        MemberInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                isEof = true;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0) {
+                isEof = true;
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return isEof ? 0 : Math.max(1, super.available());
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package com.yullage.nlp.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The on-disk tier of {@link SentenceCache}. Entries are appended to segment files in one folder and found through an
+ * in-memory index of their 64-bit keys, which is built from the segments when the cache is opened.
+ * <p>
+ * Each cache appends to a segment of its own and keeps it locked while it writes, so several processes can share the
+ * folder. Entries written by another process are seen the next time the cache is opened. When the segments take more
+ * than the size limit, the oldest unlocked segments are deleted.
+ * <p>
+ * A record is the payload length, the key and the payload, which is the sentence and the value separated by a line
+ * break. A record cut short by a crash ends the scan of its segment.
+ *
+ * @author Yu-chun Huang
+ */
+class DiskCache {
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int HEADER_SIZE = 12;
+    private static final int MIN_SEGMENT_SIZE = 1 << 20;
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private final Path dir;
+    private final long maxBytes;
+    private final long segmentSize;
+
+    // Oldest first.
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final Map<Integer, Segment> segmentsById = new HashMap<Integer, Segment>();
+    private int nextSegmentId = 0;
+    private Segment current;
+    private long totalBytes = 0;
+    private KeyIndex index = new KeyIndex(1024);
+
+    /**
+     * @param maxBytes Size limit of all segments in the folder.
+     */
+    DiskCache(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = Math.max(MIN_SEGMENT_SIZE, maxBytes);
+        this.segmentSize = Math.max(MIN_SEGMENT_SIZE, this.maxBytes / 16);
+
+        Files.createDirectories(dir);
+        List<Path> paths = new ArrayList<Path>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX);
+        try {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        } finally {
+            stream.close();
+        }
+
+        // Segment names start with their creation time, so later entries replace earlier ones.
+        Collections.sort(paths);
+        for (Path path : paths) {
+            try {
+                scan(path);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        evict();
+    }
+
+    private void scan(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        Segment segment = new Segment(nextSegmentId++, path, channel);
+        segment.size = channel.size();
+        addSegment(segment);
+
+        // The stream is not closed, as that would close the channel.
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+        long offset = 0;
+        while (offset + HEADER_SIZE <= segment.size) {
+            int length = in.readInt();
+            long key = in.readLong();
+            if ((length < 0) || (offset + HEADER_SIZE + length > segment.size)) {
+                break;
+            }
+            skipFully(in, length);
+            index.put(key, location(segment.id, offset));
+            offset += HEADER_SIZE + length;
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        int skipped = 0;
+        while (skipped < length) {
+            int n = in.skipBytes(length - skipped);
+            if (n <= 0) {
+                throw new EOFException();
+            }
+            skipped += n;
+        }
+    }
+
+    /**
+     * @return The value stored for the sentence, or null.
+     */
+    String get(long key, String sentence) {
+        Segment segment;
+        long offset;
+        synchronized (this) {
+            long location = index.get(key);
+            if (location < 0) {
+                return null;
+            }
+            segment = segmentsById.get((int) (location >>> OFFSET_BITS));
+            if (segment == null) {
+                return null;
+            }
+            offset = location & OFFSET_MASK;
+        }
+
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(segment.channel, header, offset);
+            if (header.getLong(4) != key) {
+                return null;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(header.getInt(0));
+            readFully(segment.channel, payload, offset + HEADER_SIZE);
+
+            String content = new String(payload.array(), StandardCharsets.UTF_8);
+            int idx = content.indexOf('\n');
+            if ((idx >= 0) && sentence.equals(content.substring(0, idx))) {
+                return content.substring(idx + 1);
+            }
+        } catch (ClosedChannelException e) {
+            // The segment has just been evicted.
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    synchronized void put(long key, String sentence, String value) {
+        byte[] payload = (sentence + '\n' + value).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length).putLong(key).put(payload);
+        record.flip();
+
+        try {
+            if ((current == null) || (current.size >= segmentSize)) {
+                roll();
+            }
+            long offset = current.size;
+            while (record.hasRemaining()) {
+                current.channel.write(record, offset + record.position());
+            }
+            current.size += record.limit();
+            totalBytes += record.limit();
+            index.put(key, location(current.id, offset));
+
+            if (totalBytes > maxBytes) {
+                evict();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Start a new segment to append to, and unlock the previous one, which may be evicted from now on.
+     */
+    private void roll() throws IOException {
+        if ((current != null) && (current.lock != null)) {
+            current.lock.release();
+            current.lock = null;
+        }
+
+        String name = String.format("%013d-%08x", System.currentTimeMillis(), ThreadLocalRandom.current().nextInt());
+        Path path = dir.resolve(name + SEGMENT_SUFFIX);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        Segment segment = new Segment(nextSegmentId++, path, channel);
+        segment.lock = channel.tryLock();
+        addSegment(segment);
+        current = segment;
+    }
+
+    private void addSegment(Segment segment) {
+        segments.add(segment);
+        segmentsById.put(segment.id, segment);
+        totalBytes += segment.size;
+    }
+
+    /**
+     * Delete the oldest segments until the rest fit in the size limit. Segments being written are kept.
+     */
+    private void evict() {
+        boolean isEvicted = false;
+        Iterator<Segment> it = segments.iterator();
+        while ((totalBytes > maxBytes) && it.hasNext()) {
+            Segment segment = it.next();
+            if ((segment == current) || isLocked(segment)) {
+                continue;
+            }
+
+            try {
+                Files.deleteIfExists(segment.path);
+                segment.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+            it.remove();
+            segmentsById.remove(segment.id);
+            totalBytes -= segment.size;
+            isEvicted = true;
+        }
+
+        if (isEvicted) {
+            index = index.retain(segmentsById);
+        }
+    }
+
+    /**
+     * @return Whether another cache, in this process or another one, is appending to the segment.
+     */
+    private static boolean isLocked(Segment segment) {
+        try {
+            FileLock lock = segment.channel.tryLock(0, Long.MAX_VALUE, true);
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            return false;
+        } catch (OverlappingFileLockException e) {
+            return true;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private static long location(int segmentId, long offset) {
+        return ((long) segmentId << OFFSET_BITS) | offset;
+    }
+
+    private static class Segment {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        long size = 0;
+        FileLock lock;
+
+        Segment(int id, Path path, FileChannel channel) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Open addressing map from keys to record locations, which takes far less memory than a HashMap of boxed longs.
+     * Key 0 marks an empty slot and is stored as 1; the sentence stored with the record rules out a false match.
+     */
+    private static class KeyIndex {
+        private long[] keys;
+        private long[] locations;
+        private int size = 0;
+
+        KeyIndex(int capacity) {
+            int n = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+            keys = new long[n];
+            locations = new long[n];
+        }
+
+        private int slot(long key) {
+            int mask = keys.length - 1;
+            int i = (int) (key ^ (key >>> 32)) & mask;
+            while ((keys[i] != 0) && (keys[i] != key)) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        /**
+         * @return The location of the key, or -1.
+         */
+        long get(long key) {
+            if (key == 0) {
+                key = 1;
+            }
+            int i = slot(key);
+            return (keys[i] == key) ? locations[i] : -1;
+        }
+
+        void put(long key, long location) {
+            if (key == 0) {
+                key = 1;
+            }
+            if ((size + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+            }
+            int i = slot(key);
+            if (keys[i] == 0) {
+                keys[i] = key;
+                size++;
+            }
+            locations[i] = location;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            long[] oldLocations = locations;
+            keys = new long[capacity];
+            locations = new long[capacity];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int j = slot(oldKeys[i]);
+                    keys[j] = oldKeys[i];
+                    locations[j] = oldLocations[i];
+                }
+            }
+        }
+
+        /**
+         * @return An index of the entries whose segment is still there.
+         */
+        KeyIndex retain(Map<Integer, Segment> segmentsById) {
+            KeyIndex retained = new KeyIndex(size * 2);
+            for (int i = 0; i < keys.length; i++) {
+                if ((keys[i] != 0) && segmentsById.containsKey((int) (locations[i] >>> OFFSET_BITS))) {
+                    retained.put(keys[i], locations[i]);
+                }
+            }
+            return retained;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.yullage.nlp.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the factors of a token straight into an output buffer. The factor list and the delimiters are compiled once
+ * into a sequence of parts, so emitting a token does not build any intermediate String.
+ *
+ * @author Yu-chun Huang
+ */
+public class FactorEmitter {
+    private static final int SURFACE = 0;
+    private static final int LEMMA = 1;
+    private static final int POS = 2;
+    private static final int LITERAL = 3;
+
+    private final int[] parts;
+    private final String[] literals;
+    private final boolean isLemmaUsed;
+
+    public FactorEmitter(List<FactorType> factorList, String factorDelimiter, String factorInnerDelimiter) {
+        List<Integer> partList = new ArrayList<Integer>();
+        List<String> literalList = new ArrayList<String>();
+        boolean lemmaUsed = false;
+
+        int lastIdx = factorList.size() - 1;
+        for (int i = 0; i <= lastIdx; i++) {
+            FactorType type = factorList.get(i);
+            if (type == FactorType.SURFACE) {
+                addPart(partList, literalList, SURFACE, null);
+            } else if (type == FactorType.LEMMA) {
+                addPart(partList, literalList, LEMMA, null);
+                lemmaUsed = true;
+            } else if (type == FactorType.POS) {
+                addPart(partList, literalList, POS, null);
+            } else if (type == FactorType.LEMMA_POS) {
+                addPart(partList, literalList, LEMMA, null);
+                addPart(partList, literalList, LITERAL, factorInnerDelimiter);
+                addPart(partList, literalList, POS, null);
+                lemmaUsed = true;
+            }
+
+            if (i < lastIdx) {
+                addPart(partList, literalList, LITERAL, factorDelimiter);
+            }
+        }
+
+        this.parts = new int[partList.size()];
+        this.literals = literalList.toArray(new String[literalList.size()]);
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = partList.get(i);
+        }
+        this.isLemmaUsed = lemmaUsed;
+    }
+
+    /**
+     * Adjacent literals are merged into one part.
+     */
+    private static void addPart(List<Integer> partList, List<String> literalList, int part, String literal) {
+        int last = partList.size() - 1;
+        if ((part == LITERAL) && (last >= 0) && (partList.get(last) == LITERAL)) {
+            literalList.set(last, literalList.get(last) + literal);
+        } else {
+            partList.add(part);
+            literalList.add(literal);
+        }
+    }
+
+    /**
+     * @return Whether any factor needs the lemma. If not, the lemma passed to {@link #emit} is ignored.
+     */
+    public boolean isLemmaUsed() {
+        return isLemmaUsed;
+    }
+
+    public void emit(StringBuilder out, String surface, String lemma, String pos) {
+        for (int i = 0; i < parts.length; i++) {
+            switch (parts[i]) {
+                case SURFACE:
+                    out.append(surface);
+                    break;
+                case LEMMA:
+                    out.append(lemma);
+                    break;
+                case POS:
+                    out.append(pos);
+                    break;
+                default:
+                    out.append(literals[i]);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.yullage.nlp.util;
+
+import edu.stanford.nlp.ling.HasWord;
+import edu.stanford.nlp.ling.TaggedWord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Turns the words and tags of a sentence into its factored and POS-only text: applies the POS rules, finds the lemmas
+ * and emits the factors of the factor list. Used by {@link FactorTagger} on the output of the POS tagger and by
+ * {@link JointTagger} on the preterminals of a parse. Not thread safe, because of the reused buffers; use
+ * {@link #fork()} for another thread.
+ *
+ * @author Yu-chun Huang
+ */
+public class FactorFormatter {
+    private final List<FactorType> factorList;
+    private final FactorEmitter factorEmitter;
+    private final LemmaService lemmaService;
+    private final PosRules posRules;
+
+    private final StringBuilder factorBuffer = new StringBuilder();
+    private final StringBuilder posBuffer = new StringBuilder();
+
+    public FactorFormatter(Config config) {
+        this(config, new PosRules(config));
+    }
+
+    /**
+     * @param posRules Rules to share with the caller.
+     */
+    public FactorFormatter(Config config, PosRules posRules) {
+        List<FactorType> factors = new ArrayList<FactorType>();
+        String flist = config.factorList.trim();
+        if (flist.equals("")) {
+            factors.add(FactorType.SURFACE);
+            factors.add(FactorType.LEMMA);
+            factors.add(FactorType.POS);
+        } else {
+            for (String factor : flist.split("\\s+")) {
+                factor = factor.toLowerCase();
+                if ("surface".equals(factor)) {
+                    factors.add(FactorType.SURFACE);
+                } else if ("lemma".equals(factor)) {
+                    factors.add(FactorType.LEMMA);
+                } else if ("pos".equals(factor)) {
+                    factors.add(FactorType.POS);
+                } else if ("lemma-pos".equals(factor)) {
+                    factors.add(FactorType.LEMMA_POS);
+                }
+            }
+        }
+
+        this.factorList = Collections.unmodifiableList(factors);
+        this.factorEmitter = new FactorEmitter(factorList, config.factorDelimiter, config.factorInnerDelimiter);
+        this.lemmaService = new LemmaService(config);
+        this.posRules = posRules;
+    }
+
+    private FactorFormatter(FactorFormatter base) {
+        this.factorList = base.factorList;
+        this.factorEmitter = base.factorEmitter;
+        this.lemmaService = base.lemmaService;
+        this.posRules = base.posRules;
+    }
+
+    /**
+     * @return A formatter which shares the rules and the lemma cache with this one.
+     */
+    public FactorFormatter fork() {
+        return new FactorFormatter(this);
+    }
+
+    public PosRules posRules() {
+        return posRules;
+    }
+
+    public List<FactorType> factorList() {
+        return factorList;
+    }
+
+    /**
+     * @param taggedWords Words with their tags before the POS rules.
+     */
+    public TaggedSentence format(LanguageType language, List<TaggedWord> taggedWords) {
+        int size = taggedWords.size();
+        String[] words = new String[size];
+        String[] tags = new String[size];
+        String[] lemmas = factorEmitter.isLemmaUsed() ? new String[size] : null;
+        factorBuffer.setLength(0);
+        posBuffer.setLength(0);
+        int i = 0;
+        for (TaggedWord tw : taggedWords) {
+            if (i > 0) {
+                posBuffer.append(' ');
+                factorBuffer.append(' ');
+            }
+
+            posBuffer.append(tw.tag());
+            resolveFactors(language, tw.word(), tw.tag(), i, words, tags, lemmas);
+            factorEmitter.emit(factorBuffer, words[i], (lemmas != null) ? lemmas[i] : null, tags[i]);
+            i++;
+        }
+
+        return new TaggedSentence(words, tags, lemmas, factorBuffer.toString(), posBuffer.toString());
+    }
+
+    /**
+     * @return The factored and POS sentences of a formatted sentence, as read back by {@link #fromCache}.
+     */
+    public static String cacheEntry(TaggedSentence sentence) {
+        return sentence.text() + "\n" + sentence.posText();
+    }
+
+    /**
+     * Rebuild a formatted sentence from its cache entry. The words come from the input sentence and the tags and lemmas
+     * from the cached POS tags.
+     *
+     * @return The formatted sentence, or null if the cached entry does not match the sentence.
+     */
+    public TaggedSentence fromCache(LanguageType language, List<HasWord> sentence, String cached) {
+        int idx = cached.indexOf('\n');
+        if (idx < 0) {
+            return null;
+        }
+        String factorSentence = cached.substring(0, idx);
+        String posSentence = cached.substring(idx + 1);
+
+        String[] posTags = posSentence.split(" ");
+        int size = sentence.size();
+        if (posTags.length != size) {
+            return null;
+        }
+
+        String[] words = new String[size];
+        String[] tags = new String[size];
+        String[] lemmas = factorEmitter.isLemmaUsed() ? new String[size] : null;
+        for (int i = 0; i < size; i++) {
+            resolveFactors(language, sentence.get(i).word(), posTags[i], i, words, tags, lemmas);
+        }
+        return new TaggedSentence(words, tags, lemmas, factorSentence, posSentence);
+    }
+
+    /**
+     * Apply the POS rules to the i-th word and find its lemma, if lemmas are used.
+     */
+    private void resolveFactors(LanguageType language, String word, String tag, int i, String[] words, String[] tags,
+                                String[] lemmas) {
+        PosRules.TagRule rule = posRules.lookup(language, tag);
+        words[i] = word;
+        tags[i] = rule.tag(word);
+        if (lemmas != null) {
+            String lemma = rule.lemma(word);
+            lemmas[i] = (lemma != null) ? lemma : lemmaService.lemma(word, tag);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.yullage.nlp.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes factored sentences, and optionally their POS-only text, in input order and applies the line and sentence
+ * separation rules of {@link FactorTagger}.
+ *
+ * @author Yu-chun Huang
+ */
+class FactorLineWriter {
+    private final Config config;
+    private final TaggerMetrics metrics;
+    private final BufferedWriter bwAll;
+    private final BufferedWriter bwPos;
+    private boolean isFirstLineRead = false;
+    private int lineCount = 0;
+    private int wordCount = 0;
+
+    /**
+     * @param bwPos Writer of the POS-only output, or null.
+     */
+    FactorLineWriter(Config config, TaggerMetrics metrics, BufferedWriter bwAll, BufferedWriter bwPos) {
+        this.config = config;
+        this.metrics = metrics;
+        this.bwAll = bwAll;
+        this.bwPos = bwPos;
+    }
+
+    /**
+     * @return Number of words written so far.
+     */
+    int wordCount() {
+        return wordCount;
+    }
+
+    void write(TaggedLine taggedLine) throws IOException {
+        write(taggedLine.sentences(), taggedLine.wordCount());
+    }
+
+    /**
+     * @param sentences Factored sentences of one line.
+     */
+    void write(List<TaggedSentence> sentences, int lineWordCount) throws IOException {
+        long start = System.nanoTime();
+        startLine();
+        for (int i = 0; i < sentences.size(); i++) {
+            writeSentence(sentences.get(i), i);
+        }
+        metrics.record(TaggerMetrics.Stage.WRITE, System.nanoTime() - start);
+        endLine(lineWordCount);
+    }
+
+    void startLine() throws IOException {
+        if (!config.autoSplitSentence && (lineCount > 0)) {
+            if (bwPos != null) {
+                bwPos.newLine();
+            }
+            bwAll.newLine();
+        }
+        lineCount++;
+    }
+
+    /**
+     * @param index Index of the sentence in its line.
+     */
+    void writeSentence(TaggedSentence sentence, int index) throws IOException {
+        if ((index > 0) && !config.autoSplitSentence) {
+            if (bwPos != null) {
+                bwPos.write(" ");
+            }
+            bwAll.write(" ");
+        }
+
+        if (isFirstLineRead && config.autoSplitSentence) {
+            if (bwPos != null) {
+                bwPos.newLine();
+            }
+            bwAll.newLine();
+        }
+        isFirstLineRead = true;
+
+        if (bwPos != null) {
+            bwPos.write(sentence.posText());
+        }
+        bwAll.write(sentence.text());
+    }
+
+    void endLine(int lineWordCount) {
+        wordCount += lineWordCount;
+        if (lineCount % 500 == 0) {
+            System.err.println(lineCount + " lines done.");
+        }
+    }
+
+    /**
+     * End the output after the last line.
+     */
+    void finish() throws IOException {
+        bwAll.newLine();
+        if (bwPos != null) {
+            bwPos.newLine();
+        }
+    }
+}
@@ -7,80 +7,69 @@ import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.ling.HasWord;
 import edu.stanford.nlp.ling.TaggedWord;
 import edu.stanford.nlp.process.*;
-import edu.stanford.nlp.tagger.maxent.MaxentTagger;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * @author Yu-chun Huang
  */
 public class FactorTagger implements Tagger {
     public static final String[] DEFAULT_SENTENCE_DELIMS = {".", "?", "!", "。", "？", "！"};
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
 
     private static TokenizerFactory<CoreLabel> ptbTokenizerFactory = PTBTokenizer.factory(new CoreLabelTokenFactory(),
             "untokenizable=noneKeep");
-    private MaxentTagger tagger;
-    private Morphology morph;
+    private ModelRegistry models;
 
     private Config config;
 
-    private Map<String, String> adjComparative = new HashMap<String, String>();
-    private Map<String, String> adjSuperlative = new HashMap<String, String>();
+    private FactorFormatter factorFormatter;
 
-    private List<FactorType> factorList = new ArrayList<FactorType>();
+    private List<HasWord> wordBuffer = new ArrayList<HasWord>();
+
+    private SentenceCache sentenceCache;
+    private TaggerMetrics metrics;
+    private String fingerprint;
 
     public FactorTagger(Config config) {
-        this.tagger = new MaxentTagger(config.posModel);
-        this.morph = new Morphology();
+        this.models = new ModelRegistry(config);
+        if (config.language != LanguageType.MIXED) {
+            models.posTagger(config.language);
+        }
 
         this.config = config;
 
-        String flist = config.factorList.trim();
-        if (flist.equals("")) {
-            factorList.add(FactorType.SURFACE);
-            factorList.add(FactorType.LEMMA);
-            factorList.add(FactorType.POS);
-        } else {
-            String[] factors = flist.split("\\s+");
-            for (String factor : factors) {
-                factor = factor.toLowerCase();
-                if ("surface".equals(factor)) {
-                    factorList.add(FactorType.SURFACE);
-                } else if ("lemma".equals(factor)) {
-                    factorList.add(FactorType.LEMMA);
-                } else if ("pos".equals(factor)) {
-                    factorList.add(FactorType.POS);
-                } else if ("lemma-pos".equals(factor)) {
-                    factorList.add(FactorType.LEMMA_POS);
-                }
-            }
+        this.factorFormatter = new FactorFormatter(config);
+        this.metrics = new TaggerMetrics("factor", config);
+
+        this.fingerprint = SentenceCache.fingerprint(TaggerType.FACTOR, config.language,
+                models.posModel(LanguageType.ENGLISH), models.posModel(LanguageType.CHINESE), factorFormatter.factorList(),
+                config.factorDelimiter, config.factorInnerDelimiter, config.spNnPosProcess, config.spVbPosProcess,
+                config.spLemmaProcess, config.adjFormDictionary, config.posRules, config.pretokenized);
+
+        if (config.cacheSize > 0) {
+            sentenceCache = new SentenceCache(config.cacheSize, config.cacheDir, config.cacheDiskSize * 1024L * 1024L,
+                    fingerprint);
         }
+    }
 
-        if ((config.adjFormDictionary != null) && (!"".equals(config.adjFormDictionary))) {
-            try {
-                Reader r = new InputStreamReader(new FileInputStream(config.adjFormDictionary), "UTF-8");
-                BufferedReader br = new BufferedReader(r);
-
-                String line;
-                while ((line = br.readLine()) != null) {
-                    line = line.trim().toLowerCase();
-                    String[] wordForms = line.split("\t");
-                    if (!adjComparative.containsKey(wordForms[1])) {
-                        adjComparative.put(wordForms[1], wordForms[0]);
-                    }
+    private FactorTagger(FactorTagger base) {
+        this.models = base.models;
 
-                    if (!adjSuperlative.containsKey(wordForms[2])) {
-                        adjSuperlative.put(wordForms[2], wordForms[0]);
-                    }
-                }
+        this.config = base.config;
 
-                br.close();
-                r.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+        this.factorFormatter = base.factorFormatter.fork();
+
+        this.sentenceCache = base.sentenceCache;
+        this.metrics = base.metrics;
+        this.fingerprint = base.fingerprint;
+    }
+
+    @Override
+    public Tagger fork() {
+        return new FactorTagger(this);
     }
 
     @Override
@@ -89,94 +78,31 @@ public class FactorTagger implements Tagger {
         Writer writerPos = writers.get(1);
 
         long curTimestamp = System.currentTimeMillis();
-        int wordCount = 0;
-        int lineCount = 0;
 
-        BufferedReader br = new BufferedReader(reader);
-        BufferedWriter bwAll = new BufferedWriter(writerAll);
+        BufferedReader br = CorpusIo.buffered(reader);
+        BufferedWriter bwAll = CorpusIo.buffered(writerAll);
         BufferedWriter bwPos = null;
         if (writerPos != null) {
-            bwPos = new BufferedWriter(writerPos);
+            bwPos = CorpusIo.buffered(writerPos);
         }
 
+        FactorLineWriter out = new FactorLineWriter(config, metrics, bwAll, bwPos);
         try {
-            boolean isFirstLineRead = false;
-            String line = br.readLine();
-
-            while (line != null) {
-                lineCount++;
-
-                Reader stringReader = new StringReader(line);
-                DocumentPreprocessor docPreprocessor = new DocumentPreprocessor(stringReader);
-                docPreprocessor.setTokenizerFactory(ptbTokenizerFactory);
-                docPreprocessor.setSentenceFinalPuncWords(DEFAULT_SENTENCE_DELIMS);
-
-                boolean isSentenceRead = false;
-                for (List<HasWord> sentence : docPreprocessor) {
-                    List<TaggedWord> taggedSentence = tagger.tagSentence(sentence);
-
-                    if (isSentenceRead && !config.autoSplitSentence) {
-                        if (bwPos != null) {
-                            bwPos.write(" ");
-                        }
-                        bwAll.write(" ");
+            if (config.streamLines) {
+                tagLinesStreaming(br, out);
+            } else if (config.lineThreads > 1) {
+                tagLinesParallel(br, out);
+            } else {
+                List<String> batch = readBatch(br);
+                while (!batch.isEmpty()) {
+                    for (TaggedLine taggedLine : tagBatch(batch)) {
+                        out.write(taggedLine);
                     }
-                    isSentenceRead = true;
-
-                    if (isFirstLineRead && config.autoSplitSentence) {
-                        if (bwPos != null) {
-                            bwPos.newLine();
-                        }
-                        bwAll.newLine();
-                    }
-                    isFirstLineRead = true;
-
-                    try {
-                        Iterator<TaggedWord> it = taggedSentence.iterator();
-                        TaggedWord tw;
-                        while (it.hasNext()) {
-                            tw = it.next();
-
-                            if (bwPos != null) {
-                                bwPos.write(tw.tag());
-                            }
-
-                            bwAll.write(getFactorString(tw));
-
-                            if (it.hasNext()) {
-                                if (bwPos != null) {
-                                    bwPos.write(" ");
-                                }
-                                bwAll.write(" ");
-                            }
-
-                            wordCount++;
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-
-                String nextLine = br.readLine();
-                if (!config.autoSplitSentence && (nextLine != null)) {
-                    if (bwPos != null) {
-                        bwPos.newLine();
-                    }
-                    bwAll.newLine();
-                }
-
-                stringReader.close();
-                line = nextLine;
-
-                if (lineCount % 500 == 0) {
-                    System.out.println(lineCount + " lines done.");
+                    batch = readBatch(br);
                 }
             }
 
-            bwAll.newLine();
-            if (bwPos != null) {
-                bwPos.newLine();
-            }
+            out.finish();
         } catch (IOException e1) {
             e1.printStackTrace();
         }
@@ -194,125 +120,276 @@ public class FactorTagger implements Tagger {
         }
 
         double timeElpased = (System.currentTimeMillis() - curTimestamp) / 1000.0;
-        System.out.println("Tagging completed. (" + (int) (wordCount / timeElpased) + " words/sec)");
+        System.err.println("Tagging completed. (" + (int) (out.wordCount() / timeElpased) + " words/sec)");
     }
 
-    @Override
-    public void tagSingleLine(String sentence, Writer writerAll) {
-        BufferedWriter bwAll = new BufferedWriter(writerAll);
+    /**
+     * Tag lines in batches on a pool of workers and write them back in the original order. At most
+     * 2 * lineThreads batches are in flight at any time.
+     */
+    private void tagLinesParallel(BufferedReader br, FactorLineWriter out) throws IOException {
+        int numThreads = config.lineThreads;
+        final BlockingQueue<FactorTagger> workers = new ArrayBlockingQueue<FactorTagger>(numThreads);
+        workers.add(this);
+        for (int i = 1; i < numThreads; i++) {
+            workers.add(new FactorTagger(this));
+        }
 
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        Deque<Future<List<TaggedLine>>> pending = new ArrayDeque<Future<List<TaggedLine>>>();
+        int maxPending = numThreads * 2;
         try {
-            Reader stringReader = new StringReader(sentence);
-            DocumentPreprocessor docPreprocessor = new DocumentPreprocessor(stringReader);
-            docPreprocessor.setTokenizerFactory(ptbTokenizerFactory);
-            docPreprocessor.setSentenceFinalPuncWords(DEFAULT_SENTENCE_DELIMS);
-
-            int sentenceCount = 0;
-            for (List<HasWord> s : docPreprocessor) {
-                if (!config.autoSplitSentence && (sentenceCount > 0)) {
-                    bwAll.write(" ");
+            List<String> batch = readBatch(br);
+            while (!batch.isEmpty()) {
+                if (pending.size() >= maxPending) {
+                    writeBatch(out, pending.poll());
                 }
 
-                sentenceCount++;
-                List<TaggedWord> taggedSentence = tagger.tagSentence(s);
-
-                Iterator<TaggedWord> it = taggedSentence.iterator();
-                TaggedWord tw;
-                while (it.hasNext()) {
-                    tw = it.next();
-
-                    bwAll.write(getFactorString(tw));
-
-                    if (it.hasNext()) {
-                        bwAll.write(" ");
+                final List<String> lines = batch;
+                pending.add(executor.submit(new Callable<List<TaggedLine>>() {
+                    @Override
+                    public List<TaggedLine> call() throws Exception {
+                        FactorTagger worker = workers.take();
+                        try {
+                            return worker.tagBatch(lines);
+                        } finally {
+                            workers.put(worker);
+                        }
                     }
-                }
+                }));
 
-                if (config.autoSplitSentence) {
-                    bwAll.newLine();
-                }
+                batch = readBatch(br);
             }
 
-            if (!config.autoSplitSentence && sentenceCount > 0) {
-                bwAll.newLine();
+            while (!pending.isEmpty()) {
+                writeBatch(out, pending.poll());
             }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-            if (config.eofMark) {
-                bwAll.write("__EOF__");
-                bwAll.newLine();
+    /**
+     * Tag each line sentence by sentence while it is read, and write every sentence as soon as it is tagged. A
+     * pretokenized line is one sentence, so it is read as a whole.
+     */
+    private void tagLinesStreaming(BufferedReader br, FactorLineWriter out) throws IOException {
+        LineStream lineStream = new LineStream(br, STREAM_BUFFER_SIZE);
+        while (lineStream.nextLine()) {
+            if (config.pretokenized) {
+                out.write(tagLine(lineStream.readRest()));
+                continue;
             }
 
-            bwAll.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+            LanguageType language = models.route(lineStream.prefix());
+            metrics.addLine();
+            out.startLine();
+
+            int sentenceCount = 0;
+            int wordCount = 0;
+            Iterator<List<HasWord>> it = documentPreprocessor(lineStream.line()).iterator();
+            while (true) {
+                long start = System.nanoTime();
+                if (!it.hasNext()) {
+                    break;
+                }
+                List<HasWord> sentence = it.next();
+                metrics.record(TaggerMetrics.Stage.TOKENIZE, System.nanoTime() - start);
+
+                TaggedSentence taggedSentence = tagSentence(language, sentence);
+                start = System.nanoTime();
+                out.writeSentence(taggedSentence, sentenceCount++);
+                metrics.record(TaggerMetrics.Stage.WRITE, System.nanoTime() - start);
+                wordCount += taggedSentence.size();
+            }
+            out.endLine(wordCount);
         }
     }
 
-    private void customizePos(TaggedWord taggedWord) {
-        if (config.spNnPosProcess) {
-            if (taggedWord.tag().startsWith("NN")) {
-                taggedWord.setTag("NN");
-            }
+    private List<String> readBatch(BufferedReader br) throws IOException {
+        List<String> batch = new ArrayList<String>(config.lineBatchSize);
+        String line;
+        while ((batch.size() < config.lineBatchSize) && ((line = readLine(br)) != null)) {
+            batch.add(line);
         }
+        return batch;
+    }
 
-        if (config.spVbPosProcess) {
-            if (taggedWord.tag().equals("VBP")) {
-                taggedWord.setTag("VB");
-            } else if (taggedWord.tag().equals("VBZ")) {
-                taggedWord.setTag("VB");
-            }
+    private String readLine(BufferedReader br) throws IOException {
+        long start = System.nanoTime();
+        String line = br.readLine();
+        if (line != null) {
+            metrics.record(TaggerMetrics.Stage.READ, System.nanoTime() - start);
         }
+        return line;
+    }
 
-        if (config.language == LanguageType.CHINESE) {
-            if (taggedWord.tag().startsWith("PU")) {
-                if ("。".equals(taggedWord.word()) || "？".equals(taggedWord.word()) || "！".equals(taggedWord.word()))
-                    taggedWord.setTag(taggedWord.word());
+    private void writeBatch(FactorLineWriter out, Future<List<TaggedLine>> future) throws IOException {
+        try {
+            for (TaggedLine taggedLine : future.get()) {
+                out.write(taggedLine);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
         }
     }
 
-    private String getLemma(TaggedWord taggedWord) {
-        String lemma = morph.lemma(taggedWord.word(), taggedWord.tag());
+    @Override
+    public List<TaggedLine> tagBatch(List<String> lines) {
+        List<TaggedLine> taggedLines = new ArrayList<TaggedLine>(lines.size());
+        for (String line : lines) {
+            taggedLines.add(tagLine(line));
+        }
+        return taggedLines;
+    }
 
-        if (config.spLemmaProcess) {
-            if ("JJR".equals(taggedWord.tag()) || "RBR".equals(taggedWord.tag())) { // Comparative forms
-                if (adjComparative.containsKey(taggedWord.word())) {
-                    lemma = adjComparative.get(taggedWord.word());
-                }
-            } else if ("JJS".equals(taggedWord.tag()) || "RBS".equals(taggedWord.tag())) { // Superlative forms.
-                if (adjSuperlative.containsKey(taggedWord.word())) {
-                    lemma = adjSuperlative.get(taggedWord.word());
+    /**
+     * Tokenize and tag one input line. Each sentence is formatted with its tokens separated by a space.
+     */
+    private TaggedLine tagLine(String line) {
+        LanguageType language = models.route(line);
+
+        metrics.addLine();
+        long start = System.nanoTime();
+        List<List<HasWord>> sentences = tokenize(line);
+        metrics.record(TaggerMetrics.Stage.TOKENIZE, System.nanoTime() - start);
+
+        List<TaggedSentence> taggedSentences = new ArrayList<TaggedSentence>(sentences.size());
+        for (List<HasWord> sentence : sentences) {
+            taggedSentences.add(tagSentence(language, sentence));
+        }
+
+        return new TaggedLine(language, taggedSentences);
+    }
+
+    private TaggedSentence tagSentence(LanguageType language, List<HasWord> sentence) {
+        metrics.addSentence(sentence.size());
+
+        String key = null;
+        if (sentenceCache != null) {
+            key = cacheKey(language, sentence);
+            String cached = sentenceCache.get(key);
+            if (cached != null) {
+                TaggedSentence taggedSentence = factorFormatter.fromCache(language, sentence, cached);
+                if (taggedSentence != null) {
+                    return taggedSentence;
                 }
             }
         }
 
-        return lemma;
+        long start = System.nanoTime();
+        List<TaggedWord> taggedWords = models.posTagger(language).tagSentence(sentence);
+        metrics.recordSentence(TaggerMetrics.Stage.TAG, sentence, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        TaggedSentence taggedSentence = factorFormatter.format(language, taggedWords);
+        metrics.recordSentence(TaggerMetrics.Stage.LEMMA, sentence, System.nanoTime() - start);
+
+        if (key != null) {
+            sentenceCache.put(key, FactorFormatter.cacheEntry(taggedSentence));
+        }
+        return taggedSentence;
     }
 
-    private String getFactorString(TaggedWord taggedWord) {
-        String lemma = getLemma(taggedWord);
-        customizePos(taggedWord);
-
-        String factorString = "";
-        int numFactors = factorList.size();
-        int lastIdx = numFactors - 1;
-        for (int i = 0; i < numFactors; i++) {
-            FactorType type = factorList.get(i);
-            if (type == FactorType.SURFACE) {
-                factorString += taggedWord.word();
-            } else if (type == FactorType.LEMMA) {
-                factorString += lemma;
-            } else if (type == FactorType.POS) {
-                factorString += taggedWord.tag();
-            } else if (type == FactorType.LEMMA_POS) {
-                factorString += lemma + config.factorInnerDelimiter + taggedWord.tag();
+    /**
+     * Split a line into tokenized sentences. A pretokenized line is one sentence, split on whitespace into the reused
+     * word buffer.
+     */
+    private List<List<HasWord>> tokenize(String line) {
+        List<List<HasWord>> sentences = new ArrayList<List<HasWord>>();
+        if (config.pretokenized) {
+            if (!PretokenizedSplitter.split(line, wordBuffer).isEmpty()) {
+                sentences.add(wordBuffer);
             }
+            return sentences;
+        }
 
-            if (i < lastIdx) {
-                factorString += config.factorDelimiter;
+        StringReader stringReader = new StringReader(line);
+        for (List<HasWord> sentence : documentPreprocessor(stringReader)) {
+            sentences.add(sentence);
+        }
+        stringReader.close();
+        return sentences;
+    }
+
+    /**
+     * @return The sentences of a reader, split while they are read.
+     */
+    private static DocumentPreprocessor documentPreprocessor(Reader reader) {
+        DocumentPreprocessor docPreprocessor = new DocumentPreprocessor(reader);
+        docPreprocessor.setTokenizerFactory(ptbTokenizerFactory);
+        docPreprocessor.setSentenceFinalPuncWords(DEFAULT_SENTENCE_DELIMS);
+        return docPreprocessor;
+    }
+
+    @Override
+    public void tagSingleLine(String sentence, Writer writerAll) {
+        try {
+            writeSingleLine(tagBatch(Collections.singletonList(sentence)).get(0), writerAll);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void writeSingleLine(TaggedLine taggedLine, Writer writerAll) throws IOException {
+        BufferedWriter bwAll = new BufferedWriter(writerAll);
+        List<TaggedSentence> taggedSentences = taggedLine.sentences();
+
+        int sentenceCount = 0;
+        for (TaggedSentence taggedSentence : taggedSentences) {
+            if (!config.autoSplitSentence && (sentenceCount > 0)) {
+                bwAll.write(" ");
             }
+
+            sentenceCount++;
+            bwAll.write(taggedSentence.text());
+
+            if (config.autoSplitSentence) {
+                bwAll.newLine();
+            }
+        }
+
+        if (!config.autoSplitSentence && sentenceCount > 0) {
+            bwAll.newLine();
+        }
+
+        if (config.eofMark) {
+            bwAll.write("__EOF__");
+            bwAll.newLine();
         }
 
-        return factorString;
+        bwAll.flush();
+    }
+
+    @Override
+    public String fingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public void printStats(PrintStream out) {
+        metrics.printStats(out);
+        if (sentenceCache != null) {
+            sentenceCache.printStats(out);
+        }
+    }
+
+    @Override
+    public void close() {
+        metrics.close();
+    }
+
+    private static String cacheKey(LanguageType language, List<HasWord> sentence) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(language.ordinal());
+        for (HasWord word : sentence) {
+            sb.append(' ');
+            sb.append(word.word());
+        }
+        return sb.toString();
     }
 }
@@ -0,0 +1,260 @@
+package com.yullage.nlp.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records which source files have been tagged, so that an interrupted or repeated file mode run only tags what is
+ * left. Each record holds the size, modification time and content hash of the source file, the fingerprint of the
+ * tagger configuration, the number of source lines tagged so far and the sizes of the output files at that point.
+ * <p>
+ * The hash is taken while the file is read for tagging, and only checked when the modification time has changed. It
+ * is not known for files tagged in chunks, which are then tagged again.
+ * <p>
+ * Records are appended one per line and the last record of a file wins, so a crash loses at most the record being
+ * written. The manifest is compacted when it is opened.
+ *
+ * @author Yu-chun Huang
+ */
+public class FileManifest {
+    private static final String DONE = "done";
+    private static final String PARTIAL = "partial";
+    private static final String NO_HASH = "-";
+
+    private final Path manifestFile;
+    private final String fingerprint;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private Writer writer;
+
+    /**
+     * @param manifestFile Manifest file. It is created if it does not exist.
+     * @param fingerprint  Fingerprint of everything which changes the output of a file.
+     */
+    public FileManifest(Path manifestFile, String fingerprint) throws IOException {
+        this.manifestFile = manifestFile;
+        this.fingerprint = fingerprint;
+
+        if (Files.isRegularFile(manifestFile)) {
+            BufferedReader br = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8);
+            try {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    Entry entry = Entry.parse(line);
+                    if (entry != null) {
+                        entries.put(entry.path, entry);
+                    }
+                }
+            } finally {
+                br.close();
+            }
+        }
+
+        Path tmp = Files.createTempFile(manifestFile.toAbsolutePath().getParent(), manifestFile.getFileName().toString(),
+                ".tmp");
+        try {
+            Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8);
+            try {
+                for (Entry entry : entries.values()) {
+                    w.write(entry.toString());
+                }
+            } finally {
+                w.close();
+            }
+            Files.move(tmp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        this.writer = new OutputStreamWriter(new FileOutputStream(manifestFile.toFile(), true), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Whether the file has been tagged completely with the current configuration, and its outputs are
+     * unchanged since.
+     */
+    public synchronized boolean isDone(String path, Path source, Path fileAll, Path filePos) throws IOException {
+        Entry entry = entries.get(path);
+        if ((entry == null) || !DONE.equals(entry.state) || !isOutputIntact(entry, fileAll, filePos, true)) {
+            return false;
+        }
+
+        if (entry.size != Files.size(source)) {
+            return false;
+        }
+        if (entry.mtime == Files.getLastModifiedTime(source).toMillis()) {
+            return true;
+        }
+        return !NO_HASH.equals(entry.hash) && entry.hash.equals(hash(source));
+    }
+
+    /**
+     * @return The checkpoint to resume the file from, or null if it has to be tagged from the start.
+     */
+    public synchronized Checkpoint checkpoint(String path, Path source, Path fileAll, Path filePos) throws IOException {
+        Entry entry = entries.get(path);
+        if ((entry == null) || !PARTIAL.equals(entry.state) || !isOutputIntact(entry, fileAll, filePos, false)) {
+            return null;
+        }
+
+        if ((entry.size != Files.size(source)) || (entry.mtime != Files.getLastModifiedTime(source).toMillis())) {
+            return null;
+        }
+        return new Checkpoint(entry.lines, entry.sizeAll, entry.sizePos);
+    }
+
+    private boolean isOutputIntact(Entry entry, Path fileAll, Path filePos, boolean isExact) throws IOException {
+        if (!fingerprint.equals(entry.fingerprint)) {
+            return false;
+        }
+        return isOutputIntact(fileAll, entry.sizeAll, isExact) && isOutputIntact(filePos, entry.sizePos, isExact);
+    }
+
+    private static boolean isOutputIntact(Path file, long size, boolean isExact) throws IOException {
+        if (file == null) {
+            return size < 0;
+        }
+        if (!Files.isRegularFile(file)) {
+            return false;
+        }
+        return isExact ? (Files.size(file) == size) : (Files.size(file) >= size);
+    }
+
+    public synchronized void markPartial(String path, Path source, long lines, long sizeAll, long sizePos)
+            throws IOException {
+        record(new Entry(PARTIAL, fingerprint, Files.size(source), Files.getLastModifiedTime(source).toMillis(),
+                NO_HASH, lines, sizeAll, sizePos, path));
+    }
+
+    /**
+     * @param digest Digest of the whole source file as it was read for tagging, from {@link #newDigest()}, or null if
+     *               it is not known.
+     */
+    public synchronized void markDone(String path, Path source, MessageDigest digest, long lines, long sizeAll,
+                                      long sizePos) throws IOException {
+        record(new Entry(DONE, fingerprint, Files.size(source), Files.getLastModifiedTime(source).toMillis(),
+                (digest != null) ? hex(digest) : NO_HASH, lines, sizeAll, sizePos, path));
+    }
+
+    private void record(Entry entry) throws IOException {
+        entries.put(entry.path, entry);
+        writer.write(entry.toString());
+        writer.flush();
+    }
+
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    /**
+     * @return A digest of the kind {@link #hash} takes.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return SHA-1 of the file content, in hexadecimal.
+     */
+    public static String hash(Path file) throws IOException {
+        MessageDigest md = newDigest();
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            channel.close();
+        }
+
+        return hex(md);
+    }
+
+    private static String hex(MessageDigest md) {
+        byte[] digest = md.digest();
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Number of source lines tagged and the sizes of the outputs at that point. The size of a missing output is -1.
+     */
+    public static class Checkpoint {
+        public final long lines;
+        public final long sizeAll;
+        public final long sizePos;
+
+        Checkpoint(long lines, long sizeAll, long sizePos) {
+            this.lines = lines;
+            this.sizeAll = sizeAll;
+            this.sizePos = sizePos;
+        }
+    }
+
+    /**
+     * One tab separated record. The path comes last, so that it may contain any character but a line break.
+     */
+    private static class Entry {
+        final String state;
+        final String fingerprint;
+        final long size;
+        final long mtime;
+        final String hash;
+        final long lines;
+        final long sizeAll;
+        final long sizePos;
+        final String path;
+
+        Entry(String state, String fingerprint, long size, long mtime, String hash, long lines, long sizeAll,
+              long sizePos, String path) {
+            this.state = state;
+            this.fingerprint = fingerprint;
+            this.size = size;
+            this.mtime = mtime;
+            this.hash = hash;
+            this.lines = lines;
+            this.sizeAll = sizeAll;
+            this.sizePos = sizePos;
+            this.path = path;
+        }
+
+        /**
+         * @return The record, or null if the line is not a complete record, e.g. the last line after a crash.
+         */
+        static Entry parse(String line) {
+            String[] fields = line.split("\t", 9);
+            if (fields.length < 9) {
+                return null;
+            }
+
+            try {
+                return new Entry(fields[0], fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4],
+                        Long.parseLong(fields[5]), Long.parseLong(fields[6]), Long.parseLong(fields[7]), fields[8]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return state + "\t" + fingerprint + "\t" + size + "\t" + mtime + "\t" + hash + "\t" + lines + "\t"
+                    + sizeAll + "\t" + sizePos + "\t" + path + "\n";
+        }
+    }
+}
@@ -0,0 +1,12 @@
+/**
+ * 
+ */
+package com.yullage.nlp.util;
+
+/**
+ * @author Yu-chun Huang
+ *
+ */
+public enum FlushPolicy {
+	LINE, BATCH, TIME
+}
@@ -0,0 +1,27 @@
+/**
+ * 
+ */
+package com.yullage.nlp.util;
+
+import com.beust.jcommander.IStringConverter;
+import com.beust.jcommander.ParameterException;
+
+/**
+ * @author Yu-chun Huang
+ *
+ */
+public class FlushPolicyConverter implements IStringConverter<FlushPolicy> {
+	@Override
+	public FlushPolicy convert(String value) {
+		value = value.toLowerCase().trim();
+		if ("line".equals(value)) {
+			return FlushPolicy.LINE;
+		} else if ("batch".equals(value)) {
+			return FlushPolicy.BATCH;
+		} else if ("time".equals(value)) {
+			return FlushPolicy.TIME;
+		} else {
+			throw new ParameterException("Flush policy \"" + value + "\" is not available.");
+		}
+	}
+}
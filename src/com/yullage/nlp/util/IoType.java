@@ -8,5 +8,5 @@ package com.yullage.nlp.util;
  *
  */
 public enum IoType {
-	STDIO, FILE
+	STDIO, FILE, SERVER
 }
@@ -18,6 +18,8 @@ public class IoTypeConverter implements IStringConverter<IoType> {
 			return IoType.STDIO;
 		} else if ("file".equals(value)) {
 			return IoType.FILE;
+		} else if ("server".equals(value)) {
+			return IoType.SERVER;
 		} else {
 			throw new ParameterException("IO type \"" + value + "\" is not available.");
 		}
@@ -0,0 +1,135 @@
+package com.yullage.nlp.util;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses each sentence once and writes three outputs from the parse: the tree, as written by {@link TreeTagger}, and
+ * the factored and POS-only sentences, as written by {@link FactorTagger}. The factors take their tags from the
+ * preterminals of the parse before the POS rules change them, and their lemmas from {@link LemmaService}. Both outputs
+ * share one set of {@link PosRules}.
+ * <p>
+ * Words the parser could not parse, i.e. those of a flat fallback or a failed parse, are tagged XX in the tree. For
+ * the factors they are tagged by the POS model if one is set; otherwise they keep XX and the sentence is reported on
+ * stderr. This is the only time the POS model is run.
+ * <p>
+ * The writers of {@link #tagMultiLine} are those of all factors, of the POS factor, which may be null, and of the
+ * trees. In stdio and server mode, only the trees are written.
+ *
+ * @author Yu-chun Huang
+ */
+public class JointTagger implements Tagger {
+    private Config config;
+    private TreeTagger treeTagger;
+    private TaggerMetrics metrics;
+
+    public JointTagger(Config config) {
+        this.config = config;
+        this.metrics = new TaggerMetrics("joint", config);
+        this.treeTagger = new TreeTagger(config, metrics, new FactorFormatter(config, new PosRules(config)));
+    }
+
+    private JointTagger(JointTagger base) {
+        this.config = base.config;
+        this.treeTagger = (TreeTagger) base.treeTagger.fork();
+        this.metrics = base.metrics;
+    }
+
+    @Override
+    public Tagger fork() {
+        return new JointTagger(this);
+    }
+
+    @Override
+    public void tagSingleLine(String sentence, Writer writer) {
+        treeTagger.tagSingleLine(sentence, writer);
+    }
+
+    @Override
+    public void writeSingleLine(TaggedLine taggedLine, Writer writer) throws IOException {
+        treeTagger.writeSingleLine(taggedLine, writer);
+    }
+
+    @Override
+    public void tagMultiLine(Reader reader, List<Writer> writers) {
+        Writer writerAll = writers.get(0);
+        Writer writerPos = writers.get(1);
+        Writer writerTree = writers.get(2);
+
+        long curTimestamp = System.currentTimeMillis();
+
+        BufferedReader br = CorpusIo.buffered(reader);
+        BufferedWriter bwAll = CorpusIo.buffered(writerAll);
+        BufferedWriter bwPos = null;
+        if (writerPos != null) {
+            bwPos = CorpusIo.buffered(writerPos);
+        }
+        BufferedWriter bwTree = CorpusIo.buffered(writerTree);
+
+        FactorLineWriter out = new FactorLineWriter(config, metrics, bwAll, bwPos);
+        try {
+            List<String> window = treeTagger.readWindow(br);
+            while (!window.isEmpty()) {
+                for (TaggedLine taggedLine : treeTagger.tagBatch(window)) {
+                    treeTagger.writeLine(bwTree, taggedLine);
+                    out.write(factored(taggedLine), taggedLine.wordCount());
+                }
+
+                window = treeTagger.readWindow(br);
+            }
+
+            out.finish();
+        } catch (IOException e1) {
+            e1.printStackTrace();
+        }
+
+        try {
+            bwAll.flush();
+            bwAll.close();
+            if (bwPos != null) {
+                bwPos.flush();
+                bwPos.close();
+            }
+            bwTree.flush();
+            bwTree.close();
+            br.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        double timeElapsed = (System.currentTimeMillis() - curTimestamp) / 1000.0;
+        System.err.println("Tagging completed. (" + (int) (out.wordCount() / timeElapsed) + " words/sec)");
+    }
+
+    private static List<TaggedSentence> factored(TaggedLine taggedLine) {
+        List<TaggedSentence> factoredSentences = new ArrayList<TaggedSentence>(taggedLine.sentences().size());
+        for (TaggedSentence sentence : taggedLine.sentences()) {
+            factoredSentences.add(sentence.factored());
+        }
+        return factoredSentences;
+    }
+
+    /**
+     * Each sentence of the result has a tree and, through {@link TaggedSentence#factored()}, its factored sentence.
+     */
+    @Override
+    public List<TaggedLine> tagBatch(List<String> lines) throws IOException {
+        return treeTagger.tagBatch(lines);
+    }
+
+    @Override
+    public String fingerprint() {
+        return treeTagger.fingerprint();
+    }
+
+    @Override
+    public void printStats(PrintStream out) {
+        treeTagger.printStats(out);
+    }
+
+    @Override
+    public void close() {
+        treeTagger.close();
+    }
+}
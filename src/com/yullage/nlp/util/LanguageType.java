@@ -8,5 +8,5 @@ package com.yullage.nlp.util;
  *
  */
 public enum LanguageType {
-	ENGLISH, CHINESE
+	ENGLISH, CHINESE, MIXED
 }
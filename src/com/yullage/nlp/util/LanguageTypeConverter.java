@@ -18,6 +18,8 @@ public class LanguageTypeConverter implements IStringConverter<LanguageType> {
 			return LanguageType.CHINESE;
 		} else if ("english".equals(value)) {
 			return LanguageType.ENGLISH;
+		} else if ("mixed".equals(value)) {
+			return LanguageType.MIXED;
 		} else {
 			throw new ParameterException("Language type \"" + value + "\" is not available: ");
 		}
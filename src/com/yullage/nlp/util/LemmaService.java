@@ -0,0 +1,52 @@
+package com.yullage.nlp.util;
+
+import edu.stanford.nlp.ling.WordTag;
+import edu.stanford.nlp.process.Morphology;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Memoizes lemmas of (word, tag) pairs. Lemma overrides are applied by {@link PosRules} before this is asked. A lemma
+ * never changes for a given pair, so the cache is simply cleared once it is full. Safe to share between tagging
+ * threads; each thread gets its own {@link Morphology}, which is not thread safe.
+ *
+ * @author Yu-chun Huang
+ */
+public class LemmaService {
+    private final int capacity;
+    private final ConcurrentMap<WordTag, String> lemmas = new ConcurrentHashMap<WordTag, String>();
+
+    private final ThreadLocal<Morphology> morph = new ThreadLocal<Morphology>() {
+        @Override
+        protected Morphology initialValue() {
+            return new Morphology();
+        }
+    };
+
+    public LemmaService(Config config) {
+        this.capacity = config.lemmaCacheSize;
+    }
+
+    public String lemma(String word, String tag) {
+        if (capacity <= 0) {
+            return computeLemma(word, tag);
+        }
+
+        WordTag key = new WordTag(word, tag.intern());
+        String lemma = lemmas.get(key);
+        if (lemma == null) {
+            lemma = computeLemma(word, tag);
+            if (lemmas.size() >= capacity) {
+                lemmas.clear();
+            }
+            lemmas.put(key, lemma);
+        }
+
+        return lemma;
+    }
+
+    private String computeLemma(String word, String tag) {
+        return morph.get().lemma(word, tag);
+    }
+}
@@ -0,0 +1,165 @@
+package com.yullage.nlp.util;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads the lines of a reader one after another, each as a reader of its own, so that a line can be split into
+ * sentences while it is read instead of being held as one String. Lines end at "\n", "\r" or "\r\n", the same as with
+ * {@link java.io.BufferedReader#readLine()}. Not thread safe.
+ *
+ * @author Yu-chun Huang
+ */
+public class LineStream {
+    private final Reader in;
+    private final char[] buf;
+    private int pos = 0;
+    private int limit = 0;
+    private boolean isEof = false;
+    private boolean isInLine = false;
+    // The previous line ended with '\r', so a '\n' right after it belongs to that line.
+    private boolean isSkipLf = false;
+
+    private final Reader line = new Reader() {
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            return readLine(cbuf, off, len);
+        }
+
+        /**
+         * The underlying reader stays open, as the next line is read from it too.
+         */
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * @param in         Reader to read lines from.
+     * @param bufferSize Number of characters buffered, which is also the most {@link #prefix()} returns.
+     */
+    public LineStream(Reader in, int bufferSize) {
+        this.in = in;
+        this.buf = new char[bufferSize];
+    }
+
+    /**
+     * Move to the next line, skipping whatever is left of the current one.
+     *
+     * @return False at the end of the input.
+     */
+    public boolean nextLine() throws IOException {
+        if (isInLine) {
+            char[] skipped = new char[1024];
+            while (readLine(skipped, 0, skipped.length) >= 0) {
+                // Skip the rest of the line.
+            }
+        }
+
+        if (isSkipLf) {
+            isSkipLf = false;
+            if (((pos < limit) || fill()) && (buf[pos] == '\n')) {
+                pos++;
+            }
+        }
+
+        if ((pos == limit) && !fill()) {
+            return false;
+        }
+        isInLine = true;
+        return true;
+    }
+
+    /**
+     * @return Reader of the current line, ending at its line break.
+     */
+    public Reader line() {
+        return line;
+    }
+
+    /**
+     * @return What has not been read yet of the current line.
+     */
+    public String readRest() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] chars = new char[4096];
+        int n;
+        while ((n = readLine(chars, 0, chars.length)) >= 0) {
+            sb.append(chars, 0, n);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return The start of the current line which has not been read yet, as much of it as the buffer holds.
+     */
+    public String prefix() throws IOException {
+        if (!isInLine) {
+            return "";
+        }
+
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+
+        int end = 0;
+        while (true) {
+            while ((end < limit) && (buf[end] != '\n') && (buf[end] != '\r')) {
+                end++;
+            }
+            if ((end < limit) || (limit == buf.length) || isEof) {
+                break;
+            }
+
+            int n = in.read(buf, limit, buf.length - limit);
+            if (n < 0) {
+                isEof = true;
+            } else {
+                limit += n;
+            }
+        }
+        return new String(buf, 0, end);
+    }
+
+    private int readLine(char[] cbuf, int off, int len) throws IOException {
+        if (!isInLine) {
+            return -1;
+        }
+        if ((pos == limit) && !fill()) {
+            isInLine = false;
+            return -1;
+        }
+
+        int n = 0;
+        while ((n < len) && (pos < limit)) {
+            char c = buf[pos++];
+            if ((c == '\n') || (c == '\r')) {
+                isSkipLf = (c == '\r');
+                isInLine = false;
+                break;
+            }
+            cbuf[off + n++] = c;
+        }
+        return ((n == 0) && !isInLine) ? -1 : n;
+    }
+
+    private boolean fill() throws IOException {
+        if (isEof) {
+            return false;
+        }
+
+        int n;
+        do {
+            n = in.read(buf, 0, buf.length);
+        } while (n == 0);
+        if (n < 0) {
+            isEof = true;
+            return false;
+        }
+        pos = 0;
+        limit = n;
+        return true;
+    }
+}
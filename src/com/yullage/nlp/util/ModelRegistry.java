@@ -0,0 +1,241 @@
+package com.yullage.nlp.util;
+
+import edu.stanford.nlp.parser.common.ParserQuery;
+import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
+import edu.stanford.nlp.tagger.maxent.MaxentTagger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the POS and grammar models of each language, shared by all tagging threads. When the corpus language is
+ * mixed, each line is routed to English or Chinese by the script of its characters, and the models are loaded on first
+ * use. Models which have not been used for modelIdleTimeout seconds are unloaded, and loaded again when needed. Each
+ * load, first or not, is reported on stderr with the time of its stages.
+ * <p>
+ * Nothing outside the registry may keep a model beyond its current use, or an unloaded model stays reachable. Parser
+ * queries, which refer to their grammar, are lent by the registry for one parse at a time and dropped with the
+ * grammar; a grammar is not unloaded while one of its queries is lent out.
+ *
+ * @author Yu-chun Huang
+ */
+public class ModelRegistry {
+
+    private final Config config;
+    private final Map<LanguageType, Entry<MaxentTagger>> posTaggers = new EnumMap<LanguageType, Entry<MaxentTagger>>(LanguageType.class);
+    private final Map<LanguageType, ParserEntry> parsers = new EnumMap<LanguageType, ParserEntry>(LanguageType.class);
+    private final List<Entry<?>> entries = new ArrayList<Entry<?>>();
+
+    public ModelRegistry(Config config) {
+        this.config = config;
+
+        for (final LanguageType language : languages()) {
+            final String posModel = posModel(language);
+            final String grammarModel = grammarModel(language);
+            final String[] parserOptions = parserOptions(language, config.parseMaxLength);
+
+            Entry<MaxentTagger> posTagger = new Entry<MaxentTagger>() {
+                @Override
+                MaxentTagger load() {
+                    long start = System.nanoTime();
+                    MaxentTagger tagger = new MaxentTagger(posModel);
+                    System.err.println("Loaded " + language.name().toLowerCase() + " POS model " + posModel + " in "
+                            + seconds(System.nanoTime() - start) + ".");
+                    return tagger;
+                }
+            };
+            ParserEntry parser = new ParserEntry() {
+                @Override
+                LexicalizedParser load() {
+                    long start = System.nanoTime();
+                    LexicalizedParser parser = LexicalizedParser.loadModel(grammarModel);
+                    long read = System.nanoTime();
+                    parser.setOptionFlags(parserOptions);
+                    long end = System.nanoTime();
+                    System.err.println("Loaded " + language.name().toLowerCase() + " grammar " + grammarModel + " in "
+                            + seconds(end - start) + " (read " + seconds(read - start) + ", options "
+                            + seconds(end - read) + ").");
+                    return parser;
+                }
+            };
+
+            posTaggers.put(language, posTagger);
+            parsers.put(language, parser);
+            entries.add(posTagger);
+            entries.add(parser);
+        }
+
+        if (config.modelIdleTimeout > 0) {
+            final long timeout = TimeUnit.SECONDS.toNanos(config.modelIdleTimeout);
+            long period = Math.max(1000, TimeUnit.SECONDS.toMillis(config.modelIdleTimeout) / 2);
+            new Timer("model-unloader", true).schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    long now = System.nanoTime();
+                    for (Entry<?> entry : entries) {
+                        entry.unloadIfIdle(now, timeout);
+                    }
+                }
+            }, period, period);
+        }
+    }
+
+    /**
+     * @return The languages this registry holds models for.
+     */
+    public List<LanguageType> languages() {
+        List<LanguageType> languages = new ArrayList<LanguageType>();
+        if (config.language == LanguageType.MIXED) {
+            languages.add(LanguageType.ENGLISH);
+            languages.add(LanguageType.CHINESE);
+        } else {
+            languages.add(config.language);
+        }
+        return languages;
+    }
+
+    /**
+     * Route a line to a language. Unless the corpus language is mixed, this is always the corpus language.
+     */
+    public LanguageType route(String line) {
+        if (config.language != LanguageType.MIXED) {
+            return config.language;
+        }
+
+        // By code point, so that Han characters outside the basic plane, written as surrogate pairs, are seen too.
+        for (int i = 0; i < line.length(); ) {
+            int c = line.codePointAt(i);
+            if ((c >= 0x2E80) && (Character.UnicodeScript.of(c) == Character.UnicodeScript.HAN)) {
+                return LanguageType.CHINESE;
+            }
+            i += Character.charCount(c);
+        }
+        return LanguageType.ENGLISH;
+    }
+
+    public MaxentTagger posTagger(LanguageType language) {
+        return posTaggers.get(language).get();
+    }
+
+    public LexicalizedParser parser(LanguageType language) {
+        return parsers.get(language).get();
+    }
+
+    /**
+     * Borrow a query of the grammar of a language, for one parse. Return it with {@link #releaseParserQuery}.
+     */
+    public ParserQuery borrowParserQuery(LanguageType language) {
+        return parsers.get(language).borrowQuery();
+    }
+
+    public void releaseParserQuery(LanguageType language, ParserQuery query) {
+        parsers.get(language).releaseQuery(query);
+    }
+
+    public String posModel(LanguageType language) {
+        if ((config.language == LanguageType.MIXED) && (language == LanguageType.CHINESE)) {
+            return config.posModelCh;
+        }
+        return config.posModel;
+    }
+
+    public String grammarModel(LanguageType language) {
+        if ((config.language == LanguageType.MIXED) && (language == LanguageType.CHINESE)) {
+            return config.grammarModelCh;
+        }
+        return config.grammarModel;
+    }
+
+    /**
+     * @param maxLength Length of the longest sentence the parser accepts.
+     */
+    public static String[] parserOptions(LanguageType language, int maxLength) {
+        if (language == LanguageType.CHINESE) {
+            return new String[]{"-maxLength", String.valueOf(maxLength)};
+        }
+        return new String[]{"-maxLength", String.valueOf(maxLength), "-retainTmpSubcategories"};
+    }
+
+    private static String seconds(long nanos) {
+        return String.format("%.2f sec", nanos / 1e9);
+    }
+
+    /**
+     * A lazily loaded model.
+     */
+    private abstract static class Entry<T> {
+        private T model;
+        private long lastUsed;
+
+        abstract T load();
+
+        synchronized T get() {
+            if (model == null) {
+                model = load();
+            }
+            lastUsed = System.nanoTime();
+            return model;
+        }
+
+        synchronized void unloadIfIdle(long now, long timeout) {
+            if ((model != null) && (now - lastUsed > timeout) && !isInUse()) {
+                model = null;
+                unloaded();
+            }
+        }
+
+        /**
+         * @return Whether the model must not be unloaded now, even if it looks idle.
+         */
+        boolean isInUse() {
+            return false;
+        }
+
+        /**
+         * Drop whatever refers to the unloaded model. Called with the lock held.
+         */
+        void unloaded() {
+        }
+    }
+
+    /**
+     * A grammar together with the parser queries made from it. Idle queries are reused by any thread.
+     */
+    private abstract static class ParserEntry extends Entry<LexicalizedParser> {
+        private final List<ParserQuery> idleQueries = new ArrayList<ParserQuery>();
+        private final Set<ParserQuery> lentQueries = Collections.newSetFromMap(
+                new IdentityHashMap<ParserQuery, Boolean>());
+
+        synchronized ParserQuery borrowQuery() {
+            LexicalizedParser parser = get();
+            ParserQuery query = idleQueries.isEmpty() ? parser.parserQuery()
+                    : idleQueries.remove(idleQueries.size() - 1);
+            lentQueries.add(query);
+            return query;
+        }
+
+        synchronized void releaseQuery(ParserQuery query) {
+            if (lentQueries.remove(query)) {
+                idleQueries.add(query);
+            }
+        }
+
+        @Override
+        boolean isInUse() {
+            return !lentQueries.isEmpty();
+        }
+
+        @Override
+        void unloaded() {
+            idleQueries.clear();
+        }
+    }
+}
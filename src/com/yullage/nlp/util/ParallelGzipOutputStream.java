@@ -0,0 +1,131 @@
+package com.yullage.nlp.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a multi-member gzip stream. Output is cut into blocks which are compressed as separate gzip members on a
+ * shared pool of compressor threads, and the members are written in order. Any gzip reader, including gzip, zcat and
+ * {@link java.util.zip.GZIPInputStream}, reads the concatenated members as one stream.
+ * <p>
+ * {@link #flush()} ends the current member early, so frequent flushes make the output larger. Not thread safe.
+ *
+ * @author Yu-chun Huang
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final ExecutorService compressors;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    private byte[] block;
+    private int blockLength = 0;
+    private boolean isMemberWritten = false;
+
+    /**
+     * @param out         Stream the members are written to. It is closed with this stream.
+     * @param blockSize   Number of uncompressed bytes per member.
+     * @param compressors Threads compressing the blocks.
+     * @param maxPending  Number of blocks compressed ahead of the writer, after which writing blocks.
+     */
+    public ParallelGzipOutputStream(OutputStream out, int blockSize, ExecutorService compressors, int maxPending) {
+        this.out = out;
+        this.compressors = compressors;
+        this.maxPending = Math.max(1, maxPending);
+        this.block = new byte[Math.max(blockSize, 16)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (blockLength == block.length) {
+            submitBlock();
+        }
+        block[blockLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (blockLength == block.length) {
+                submitBlock();
+            }
+            int n = Math.min(len, block.length - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] data = block;
+        final int length = blockLength;
+        block = new byte[data.length];
+        blockLength = 0;
+
+        pending.addLast(compressors.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return compress(data, length);
+            }
+        }));
+        while (pending.size() > maxPending) {
+            writeMember();
+        }
+    }
+
+    private static byte[] compress(byte[] data, int length) throws IOException {
+        ByteArrayOutputStream member = new ByteArrayOutputStream(length / 3 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(member, 1 << 16);
+        gzip.write(data, 0, length);
+        gzip.close();
+        return member.toByteArray();
+    }
+
+    /**
+     * Wait for the oldest block and write its member.
+     */
+    private void writeMember() throws IOException {
+        try {
+            out.write(pending.removeFirst().get());
+            isMemberWritten = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (blockLength > 0) {
+            submitBlock();
+        }
+        while (!pending.isEmpty()) {
+            writeMember();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            if (!isMemberWritten) {
+                // An empty file is not valid gzip, so write one empty member.
+                out.write(compress(block, 0));
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
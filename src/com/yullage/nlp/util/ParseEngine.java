@@ -0,0 +1,150 @@
+package com.yullage.nlp.util;
+
+import edu.stanford.nlp.ling.HasWord;
+import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
+import edu.stanford.nlp.trees.Tree;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses sentences on a pool of parser threads sharing one {@link BoundedParser}, which borrows a parser query from the
+ * {@link ModelRegistry} for each sentence. Sentences handed over together are scheduled longest first, because PCFG
+ * parse time grows roughly with the cube of the sentence length, and are returned in input order. Each thread keeps its
+ * own usage counters.
+ *
+ * @author Yu-chun Huang
+ */
+public class ParseEngine {
+    private final ThreadPoolExecutor executor;
+    private final BoundedParser boundedParser;
+    private final TaggerMetrics metrics;
+    private final List<Worker> allWorkers = new CopyOnWriteArrayList<Worker>();
+    private final ThreadLocal<Worker> currentWorker = new ThreadLocal<Worker>();
+    private final long startTime = System.nanoTime();
+
+    /**
+     * @param numThreads Number of parser threads.
+     * @param config     Configuration with the parse budgets.
+     * @param models     Models the parser queries are borrowed from.
+     * @param metrics    Metrics the parse latency of each sentence is recorded to.
+     */
+    public ParseEngine(int numThreads, Config config, ModelRegistry models, TaggerMetrics metrics) {
+        this.boundedParser = new BoundedParser(config, models, metrics);
+        this.metrics = metrics;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Worker worker = new Worker(threadCount.getAndIncrement());
+                allWorkers.add(worker);
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        currentWorker.set(worker);
+                        r.run();
+                    }
+                }, "parser-" + worker.id);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Start every thread now, so that the usage of all of them is printed.
+        executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * Parse all sentences concurrently, longest first.
+     *
+     * @param parser    Parser model to use.
+     * @param language  Language of the sentences.
+     * @param sentences Sentences to parse.
+     * @return Parse trees in the same order as the sentences.
+     */
+    public List<Tree> parse(final LexicalizedParser parser, final LanguageType language,
+                            List<? extends List<? extends HasWord>> sentences) throws IOException {
+        Integer[] order = new Integer[sentences.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+
+        final List<? extends List<? extends HasWord>> s = sentences;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Integer.compare(s.get(i2).size(), s.get(i1).size());
+            }
+        });
+
+        List<Future<Tree>> futures = new ArrayList<Future<Tree>>(Collections.<Future<Tree>>nCopies(order.length, null));
+        for (Integer idx : order) {
+            final List<? extends HasWord> sentence = sentences.get(idx);
+            futures.set(idx, executor.submit(new Callable<Tree>() {
+                @Override
+                public Tree call() throws Exception {
+                    return parse(currentWorker.get(), parser, language, sentence);
+                }
+            }));
+        }
+
+        List<Tree> trees = new ArrayList<Tree>(futures.size());
+        try {
+            for (Future<Tree> future : futures) {
+                trees.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+
+        return trees;
+    }
+
+    private Tree parse(Worker worker, LexicalizedParser parser, LanguageType language,
+                       List<? extends HasWord> sentence) {
+        long start = System.nanoTime();
+        try {
+            return boundedParser.parse(parser, language, sentence);
+        } finally {
+            long nanos = System.nanoTime() - start;
+            metrics.recordSentence(TaggerMetrics.Stage.PARSE, sentence, nanos);
+            worker.busyNanos += nanos;
+            worker.sentenceCount++;
+            worker.wordCount += sentence.size();
+        }
+    }
+
+    /**
+     * Print how busy each parser thread has been since the engine was created.
+     */
+    public void printUsage(PrintStream out) {
+        double wallTime = (System.nanoTime() - startTime) / 1e9;
+        for (Worker worker : allWorkers) {
+            double busyTime = worker.busyNanos / 1e9;
+            out.println(String.format("Parser worker %d: %d sentences, %d words, %.1f sec busy (%.1f%%)",
+                    worker.id, worker.sentenceCount, worker.wordCount, busyTime, 100.0 * busyTime / wallTime));
+        }
+    }
+
+    /**
+     * Usage counters of one parser thread, which is the only one to update them.
+     */
+    private static class Worker {
+        final int id;
+        volatile long busyNanos = 0;
+        volatile int sentenceCount = 0;
+        volatile long wordCount = 0;
+
+        Worker(int id) {
+            this.id = id;
+        }
+    }
+}
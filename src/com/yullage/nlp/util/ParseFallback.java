@@ -0,0 +1,12 @@
+/**
+ * 
+ */
+package com.yullage.nlp.util;
+
+/**
+ * @author Yu-chun Huang
+ *
+ */
+public enum ParseFallback {
+	FLAT, TAGGED, CHUNK
+}
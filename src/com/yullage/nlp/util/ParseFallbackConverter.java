@@ -0,0 +1,27 @@
+/**
+ * 
+ */
+package com.yullage.nlp.util;
+
+import com.beust.jcommander.IStringConverter;
+import com.beust.jcommander.ParameterException;
+
+/**
+ * @author Yu-chun Huang
+ *
+ */
+public class ParseFallbackConverter implements IStringConverter<ParseFallback> {
+	@Override
+	public ParseFallback convert(String value) {
+		value = value.toLowerCase().trim();
+		if ("flat".equals(value)) {
+			return ParseFallback.FLAT;
+		} else if ("tagged".equals(value)) {
+			return ParseFallback.TAGGED;
+		} else if ("chunk".equals(value)) {
+			return ParseFallback.CHUNK;
+		} else {
+			throw new ParameterException("Parse fallback \"" + value + "\" is not available.");
+		}
+	}
+}
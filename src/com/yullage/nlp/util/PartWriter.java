@@ -0,0 +1,66 @@
+package com.yullage.nlp.util;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the output of one part of a file when sentences are split into separate lines. The factor outputs of a part
+ * without any sentence are a lone line break, which a run on the whole file does not write. Line breaks at the start
+ * are therefore held back until other text follows, and the writer is only opened then, so such a part writes
+ * nothing at all.
+ *
+ * @author Yu-chun Huang
+ */
+abstract class PartWriter extends Writer {
+    private final StringBuilder held = new StringBuilder();
+    private Writer out;
+
+    /**
+     * @return The writer the text goes to, opened on the first text which is not a line break.
+     */
+    abstract Writer open() throws IOException;
+
+    /**
+     * @return Whether only line breaks, if anything, have been written.
+     */
+    boolean isEmpty() {
+        return out == null;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (out != null) {
+            out.write(cbuf, off, len);
+            return;
+        }
+
+        int end = off + len;
+        int i = off;
+        while ((i < end) && ((cbuf[i] == '\n') || (cbuf[i] == '\r'))) {
+            i++;
+        }
+        held.append(cbuf, off, i - off);
+        if (i == end) {
+            return;
+        }
+
+        out = open();
+        out.write(held.toString());
+        held.setLength(0);
+        out.write(cbuf, i, end - i);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package com.yullage.nlp.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * POS and lemma post-processing rules, shared by both taggers and their forks. The rules are compiled into one table
+ * per language, which maps an input tag to a {@link TagRule} holding the output tag and the lemma overrides of that tag,
+ * so that applying all rules to a token costs one table lookup. A table entry is compiled the first time its tag is
+ * seen.
+ * <p>
+ * The built-in rules come from spNnPosProcess, spVbPosProcess, spLemmaProcess with the ADJ forms dictionary, and the
+ * Chinese sentence-final punctuation tags. Further rules are read from the posRules file, one rule per line with
+ * tab-separated fields, "#" starting a comment:
+ * <pre>
+ * tag       language  tagPattern  outputTag
+ * word-tag  language  tagPattern  word  outputTag
+ * lemma     language  tagPattern  word  lemma
+ * </pre>
+ * The language is "english", "chinese" or "*" for both. A tag pattern is a tag, or a tag prefix followed by "*". All
+ * patterns are matched against the input tag, and a later rule overrides an earlier one; rules from the file come
+ * after the built-in ones. Lemma rules replace the lemma in the factored output and the word in trees.
+ * <p>
+ * The whole rules file and the ADJ forms dictionary are read when the rules are created, and the first invalid line
+ * fails with an {@link IllegalArgumentException} naming the file and the line.
+ *
+ * @author Yu-chun Huang
+ */
+public class PosRules {
+    private final List<Rule> rules = new ArrayList<Rule>();
+    private final Map<LanguageType, ConcurrentMap<String, TagRule>> tables = new EnumMap<LanguageType, ConcurrentMap<String, TagRule>>(LanguageType.class);
+
+    /**
+     * @throws IllegalArgumentException If a rules file cannot be read or has an invalid line.
+     */
+    public PosRules(Config config) {
+        for (LanguageType language : LanguageType.values()) {
+            tables.put(language, new ConcurrentHashMap<String, TagRule>());
+        }
+
+        if (config.spNnPosProcess) {
+            rules.add(Rule.tag(null, "NN*", "NN"));
+        }
+
+        if (config.spVbPosProcess) {
+            rules.add(Rule.tag(null, "VBP", "VB"));
+            rules.add(Rule.tag(null, "VBZ", "VB"));
+        }
+
+        Rule chinesePunctuation = new Rule(Rule.Kind.WORD_TAG, LanguageType.CHINESE, "PU*");
+        for (String punctuation : new String[]{"。", "？", "！"}) {
+            chinesePunctuation.words.put(punctuation, punctuation);
+        }
+        rules.add(chinesePunctuation);
+
+        if (config.spLemmaProcess && (config.adjFormDictionary != null) && !"".equals(config.adjFormDictionary)) {
+            try {
+                addAdjForms(config.adjFormDictionary);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read the ADJ forms dictionary " + config.adjFormDictionary
+                        + ": " + e.getMessage(), e);
+            }
+        }
+
+        if ((config.posRules != null) && !"".equals(config.posRules)) {
+            try {
+                addRules(config.posRules);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read the POS rules file " + config.posRules + ": "
+                        + e.getMessage(), e);
+            }
+        }
+    }
+
+    private static IllegalArgumentException invalidLine(String what, String fileName, int lineNumber, String line) {
+        return new IllegalArgumentException("Invalid " + what + " at line " + lineNumber + " of " + fileName + ": "
+                + line);
+    }
+
+    /**
+     * Comparative (JJR, RBR) and superlative (JJS, RBS) forms get the base form as lemma.
+     */
+    private void addAdjForms(String fileName) throws IOException {
+        Map<String, String> comparative = new HashMap<String, String>();
+        Map<String, String> superlative = new HashMap<String, String>();
+
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(fileName), "UTF-8"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = br.readLine()) != null) {
+                lineNumber++;
+                line = line.trim().toLowerCase();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] wordForms = line.split("\t");
+                if (wordForms.length != 3) {
+                    throw invalidLine("ADJ forms entry", fileName, lineNumber, line);
+                }
+                if (!comparative.containsKey(wordForms[1])) {
+                    comparative.put(wordForms[1], wordForms[0]);
+                }
+
+                if (!superlative.containsKey(wordForms[2])) {
+                    superlative.put(wordForms[2], wordForms[0]);
+                }
+            }
+        } finally {
+            br.close();
+        }
+
+        for (String tag : new String[]{"JJR", "RBR"}) {
+            rules.add(Rule.lemma(null, tag, comparative));
+        }
+        for (String tag : new String[]{"JJS", "RBS"}) {
+            rules.add(Rule.lemma(null, tag, superlative));
+        }
+    }
+
+    private void addRules(String fileName) throws IOException {
+        // Consecutive word rules of the same kind, language and pattern share one rule.
+        Rule wordRule = null;
+
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(fileName), "UTF-8"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = br.readLine()) != null) {
+                lineNumber++;
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                String[] fields = line.split("\t");
+                Rule.Kind kind = Rule.Kind.of(fields[0]);
+                if ((kind == null) || (fields.length != kind.fieldCount)) {
+                    throw invalidLine("POS rule", fileName, lineNumber, line);
+                }
+                for (String field : fields) {
+                    if (field.trim().isEmpty()) {
+                        throw invalidLine("POS rule", fileName, lineNumber, line);
+                    }
+                }
+
+                LanguageType language;
+                if ("*".equals(fields[1])) {
+                    language = null;
+                } else if ("english".equals(fields[1])) {
+                    language = LanguageType.ENGLISH;
+                } else if ("chinese".equals(fields[1])) {
+                    language = LanguageType.CHINESE;
+                } else {
+                    throw invalidLine("POS rule language", fileName, lineNumber, line);
+                }
+
+                if (kind == Rule.Kind.TAG) {
+                    rules.add(Rule.tag(language, fields[2], fields[3]));
+                    wordRule = null;
+                    continue;
+                }
+
+                if ((wordRule == null) || (wordRule.kind != kind) || (wordRule.language != language)
+                        || !wordRule.pattern.equals(fields[2])) {
+                    wordRule = new Rule(kind, language, fields[2]);
+                    rules.add(wordRule);
+                }
+                wordRule.words.put(fields[3], fields[4]);
+            }
+        } finally {
+            br.close();
+        }
+    }
+
+    /**
+     * @return The rule for a tag, compiled on first use.
+     */
+    public TagRule lookup(LanguageType language, String tag) {
+        ConcurrentMap<String, TagRule> table = tables.get(language);
+        TagRule tagRule = table.get(tag);
+        if (tagRule == null) {
+            tagRule = compile(language, tag);
+            TagRule existing = table.putIfAbsent(tag, tagRule);
+            if (existing != null) {
+                tagRule = existing;
+            }
+        }
+        return tagRule;
+    }
+
+    private TagRule compile(LanguageType language, String tag) {
+        String outputTag = tag;
+        Map<String, String> wordTags = Collections.emptyMap();
+        Map<String, String> lemmas = Collections.emptyMap();
+        boolean isWordTagsCopied = false;
+        boolean isLemmasCopied = false;
+
+        for (Rule rule : rules) {
+            if (!rule.matches(language, tag)) {
+                continue;
+            }
+
+            if (rule.kind == Rule.Kind.TAG) {
+                outputTag = rule.outputTag;
+                // A later tag rule overrides earlier word rules too.
+                wordTags = Collections.emptyMap();
+                isWordTagsCopied = false;
+            } else if (rule.kind == Rule.Kind.WORD_TAG) {
+                if (wordTags.isEmpty()) {
+                    wordTags = rule.words;
+                } else {
+                    if (!isWordTagsCopied) {
+                        wordTags = new HashMap<String, String>(wordTags);
+                        isWordTagsCopied = true;
+                    }
+                    wordTags.putAll(rule.words);
+                }
+            } else {
+                if (lemmas.isEmpty()) {
+                    lemmas = rule.words;
+                } else {
+                    if (!isLemmasCopied) {
+                        lemmas = new HashMap<String, String>(lemmas);
+                        isLemmasCopied = true;
+                    }
+                    lemmas.putAll(rule.words);
+                }
+            }
+        }
+
+        return new TagRule(outputTag, wordTags, lemmas);
+    }
+
+    /**
+     * The compiled rules of one input tag.
+     */
+    public static final class TagRule {
+        private final String tag;
+        private final Map<String, String> wordTags;
+        private final Map<String, String> lemmas;
+
+        TagRule(String tag, Map<String, String> wordTags, Map<String, String> lemmas) {
+            this.tag = tag;
+            this.wordTags = wordTags;
+            this.lemmas = lemmas;
+        }
+
+        /**
+         * @return The output tag of a word.
+         */
+        public String tag(String word) {
+            if (wordTags.isEmpty()) {
+                return tag;
+            }
+            String wordTag = wordTags.get(word);
+            return (wordTag != null) ? wordTag : tag;
+        }
+
+        /**
+         * @return The lemma override of a word, or null if the lemma is not overridden.
+         */
+        public String lemma(String word) {
+            return lemmas.isEmpty() ? null : lemmas.get(word);
+        }
+    }
+
+    /**
+     * One rule as written, before compilation.
+     */
+    private static class Rule {
+        enum Kind {
+            TAG("tag", 4), WORD_TAG("word-tag", 5), LEMMA("lemma", 5);
+
+            final String name;
+            final int fieldCount;
+
+            Kind(String name, int fieldCount) {
+                this.name = name;
+                this.fieldCount = fieldCount;
+            }
+
+            static Kind of(String name) {
+                for (Kind kind : values()) {
+                    if (kind.name.equals(name)) {
+                        return kind;
+                    }
+                }
+                return null;
+            }
+        }
+
+        final Kind kind;
+        final LanguageType language;
+        final String pattern;
+        final String prefix;
+        String outputTag;
+        Map<String, String> words = new HashMap<String, String>();
+
+        /**
+         * @param language Language the rule applies to, or null for all languages.
+         */
+        Rule(Kind kind, LanguageType language, String pattern) {
+            this.kind = kind;
+            this.language = language;
+            this.pattern = pattern;
+            this.prefix = pattern.endsWith("*") ? pattern.substring(0, pattern.length() - 1) : null;
+        }
+
+        static Rule tag(LanguageType language, String pattern, String outputTag) {
+            Rule rule = new Rule(Kind.TAG, language, pattern);
+            rule.outputTag = outputTag;
+            return rule;
+        }
+
+        static Rule lemma(LanguageType language, String pattern, Map<String, String> lemmas) {
+            Rule rule = new Rule(Kind.LEMMA, language, pattern);
+            rule.words = lemmas;
+            return rule;
+        }
+
+        boolean matches(LanguageType language, String tag) {
+            if ((this.language != null) && (this.language != language)) {
+                return false;
+            }
+            return (prefix != null) ? tag.startsWith(prefix) : tag.equals(pattern);
+        }
+    }
+}
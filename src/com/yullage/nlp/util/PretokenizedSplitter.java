@@ -0,0 +1,41 @@
+package com.yullage.nlp.util;
+
+import edu.stanford.nlp.ling.HasWord;
+import edu.stanford.nlp.ling.Word;
+
+import java.util.List;
+
+/**
+ * Splits an already tokenized line, such as the output of the Moses tokenizer, on whitespace. Unlike PTBTokenizer, no
+ * token is changed, merged or split, so the tagged line has exactly as many tokens as the input line.
+ *
+ * @author Yu-chun Huang
+ */
+public final class PretokenizedSplitter {
+    private PretokenizedSplitter() {
+    }
+
+    /**
+     * @param line  Line to split.
+     * @param words List the tokens are put into. It is cleared first, so that one list can be reused for every line.
+     * @return words
+     */
+    public static List<HasWord> split(String line, List<HasWord> words) {
+        words.clear();
+        int length = line.length();
+        int i = 0;
+        while (i < length) {
+            while ((i < length) && Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while ((i < length) && !Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                words.add(new Word(line.substring(start, i)));
+            }
+        }
+        return words;
+    }
+}
@@ -0,0 +1,553 @@
+package com.yullage.nlp.util;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Tags the source files on child JVMs, each running a {@link ProcessWorker} with its own models and heap, so that the
+ * garbage collection of one worker does not stop the others. Files are read here and cut into blocks of
+ * processBlockLines lines, so a single large file is spread over all workers too. Blocks are streamed to the workers
+ * over their standard input, at most {@link #MAX_IN_FLIGHT} at a time per worker, and their outputs are written here
+ * in input order into the same target layout as the in-process file mode, and the same outputs as tagging each file
+ * in one go.
+ * <p>
+ * A worker which exits or breaks its pipe is restarted and gets its unfinished blocks again. A block which has been
+ * on {@link #MAX_ATTEMPTS} crashed workers fails its file, whose outputs are then removed; a worker which crashes
+ * that many times in a row without finishing a block is not restarted again.
+ *
+ * @author Yu-chun Huang
+ */
+public class ProcessCoordinator {
+    private static final int MAX_IN_FLIGHT = 2;
+    private static final int MAX_ATTEMPTS = 3;
+
+    // Compared by identity, ends the queue of blocks to write.
+    private static final Block END_OF_BLOCKS = new Block(null, new byte[0], true);
+
+    private final Config config;
+    private final List<String> command;
+    private final CorpusIo corpusIo;
+    private final Slot[] slots;
+    private final BlockingQueue<Block> blocks;
+    private final Object lock = new Object();
+    private int nextBlockId = 0;
+    private boolean isShuttingDown = false;
+
+    /**
+     * @param args Arguments of this JVM, which are passed on to the workers.
+     */
+    public ProcessCoordinator(Config config, String[] args) {
+        this.config = config;
+        this.corpusIo = new CorpusIo(config);
+        this.slots = new Slot[config.processes];
+        this.blocks = new ArrayBlockingQueue<Block>(config.processes * MAX_IN_FLIGHT * 2);
+
+        command = new ArrayList<String>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (config.processJvmOptions != null) {
+            for (String option : config.processJvmOptions.trim().split("\\s+")) {
+                if (!option.isEmpty()) {
+                    command.add(option);
+                }
+            }
+        } else {
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Boot.class.getName());
+        command.addAll(Arrays.asList(args));
+        command.add("-processWorker");
+    }
+
+    public void run() {
+        if (config.manifest != null) {
+            System.err.println("The manifest is not used with worker processes.");
+        }
+
+        final List<Boot.SourceFile> sourceFiles = Boot.sourceFiles(config);
+        synchronized (lock) {
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = new Slot(i);
+                slots[i].start();
+            }
+        }
+
+        Thread dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (Boot.SourceFile sourceFile : sourceFiles) {
+                        dispatchFile(new OutputFile(sourceFile));
+                    }
+                    blocks.put(END_OF_BLOCKS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "process-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+
+        int failedFiles = 0;
+        try {
+            Block block;
+            while ((block = blocks.take()) != END_OF_BLOCKS) {
+                block.done.await();
+                if (!writeBlock(block)) {
+                    failedFiles++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        shutdown();
+
+        if (failedFiles > 0) {
+            System.err.println(failedFiles + " files failed.");
+        } else {
+            System.err.println("All files tagged.");
+        }
+    }
+
+    /**
+     * Read a source file and hand its blocks to the workers. An empty file is one empty block.
+     */
+    private void dispatchFile(OutputFile outputFile) throws InterruptedException {
+        BufferedReader br = null;
+        try {
+            br = corpusIo.openReader(outputFile.sourceFile.file);
+            String line = br.readLine();
+            do {
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                int lineCount = 0;
+                while ((line != null) && (lineCount < config.processBlockLines)) {
+                    data.write(line.getBytes(StandardCharsets.UTF_8));
+                    data.write('\n');
+                    lineCount++;
+                    line = br.readLine();
+                }
+                dispatch(new Block(outputFile, data.toByteArray(), line == null));
+            } while (line != null);
+        } catch (IOException e) {
+            Block failed = new Block(outputFile, new byte[0], true);
+            failed.fail(e.toString());
+            blocks.put(failed);
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void dispatch(Block block) throws InterruptedException {
+        blocks.put(block);
+        synchronized (lock) {
+            block.id = nextBlockId++;
+            assign(block);
+        }
+    }
+
+    /**
+     * Give a block to the live worker with the fewest unfinished blocks, waiting while all of them are full. Called
+     * with the lock held.
+     */
+    private void assign(Block block) throws InterruptedException {
+        while (true) {
+            Slot best = null;
+            boolean isAnyLive = false;
+            for (Slot slot : slots) {
+                if (slot.worker == null) {
+                    continue;
+                }
+                isAnyLive = true;
+                if ((slot.assigned.size() < MAX_IN_FLIGHT)
+                        && ((best == null) || (slot.assigned.size() < best.assigned.size()))) {
+                    best = slot;
+                }
+            }
+
+            if (!isAnyLive) {
+                block.fail("no worker process left");
+                return;
+            }
+
+            if (best != null) {
+                best.assigned.addLast(block);
+                best.worker.send(block);
+                return;
+            }
+            lock.wait();
+        }
+    }
+
+    /**
+     * Write the output of a block, opening the outputs of its file with its first block and closing them with its
+     * last. After a failed block, the rest of the file is skipped and its outputs are removed.
+     *
+     * @return False if the block fails its file.
+     */
+    private boolean writeBlock(Block block) {
+        OutputFile outputFile = block.file;
+        if (outputFile.isFailed) {
+            return true;
+        }
+
+        Boot.SourceFile sourceFile = outputFile.sourceFile;
+        try {
+            if (block.error != null) {
+                throw new IOException(block.error);
+            }
+
+            if (outputFile.outAll == null) {
+                outputFile.outAll = corpusIo.openOutputStream(sourceFile.fileAll);
+                if (sourceFile.filePos != null) {
+                    outputFile.outPos = corpusIo.openOutputStream(sourceFile.filePos);
+                }
+                if (sourceFile.fileTree != null) {
+                    outputFile.outTree = corpusIo.openOutputStream(sourceFile.fileTree);
+                }
+            }
+
+            if (config.autoSplitSentence && isLineBreaks(block.outputAll)) {
+                // A block without any sentence, whose output is only kept if the whole file has none.
+                if (outputFile.emptyBlock == null) {
+                    outputFile.emptyBlock = block;
+                }
+            } else {
+                outputFile.write(block);
+            }
+
+            if (block.isLast) {
+                if (!outputFile.isWritten && (outputFile.emptyBlock != null)) {
+                    outputFile.write(outputFile.emptyBlock);
+                }
+                outputFile.close();
+                System.err.println("Tagged " + sourceFile.path + ".");
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to tag " + sourceFile.path + ": " + e.getMessage());
+            outputFile.isFailed = true;
+            try {
+                outputFile.close();
+                Files.deleteIfExists(sourceFile.fileAll);
+                if (sourceFile.filePos != null) {
+                    Files.deleteIfExists(sourceFile.filePos);
+                }
+                if (sourceFile.fileTree != null) {
+                    Files.deleteIfExists(sourceFile.fileTree);
+                }
+            } catch (IOException e1) {
+                e1.printStackTrace();
+            }
+            return false;
+        }
+    }
+
+    private static boolean isLineBreaks(byte[] output) {
+        for (byte b : output) {
+            if ((b != '\n') && (b != '\r')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void shutdown() {
+        List<WorkerProcess> workers = new ArrayList<WorkerProcess>();
+        synchronized (lock) {
+            isShuttingDown = true;
+            for (Slot slot : slots) {
+                if (slot.worker != null) {
+                    workers.add(slot.worker);
+                    slot.worker.send(END_OF_BLOCKS);
+                }
+            }
+        }
+
+        for (WorkerProcess worker : workers) {
+            try {
+                worker.process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                worker.process.destroy();
+            }
+        }
+    }
+
+    private void completed(Slot slot, WorkerProcess worker, int id, byte[] outputAll, byte[] outputPos,
+                           byte[] outputTree) {
+        synchronized (lock) {
+            if (slot.worker != worker) {
+                return;
+            }
+
+            Block block = slot.assigned.peekFirst();
+            if ((block == null) || (block.id != id)) {
+                crashed(slot, worker, "sent an unexpected block " + id);
+                return;
+            }
+            slot.assigned.removeFirst();
+            slot.crashes = 0;
+            block.complete(outputAll, outputPos, outputTree);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Restart a worker which has exited or broken its pipe, and send it the blocks it has not finished.
+     */
+    private void crashed(Slot slot, WorkerProcess worker, String reason) {
+        synchronized (lock) {
+            if (slot.worker != worker) {
+                return;
+            }
+            worker.process.destroy();
+            if (isShuttingDown && slot.assigned.isEmpty()) {
+                return;
+            }
+
+            System.err.println("Worker process " + slot.index + " " + reason + ".");
+            List<Block> unfinished = new ArrayList<Block>(slot.assigned);
+            slot.assigned.clear();
+            for (Block block : unfinished) {
+                block.attempts++;
+                if (block.attempts >= MAX_ATTEMPTS) {
+                    block.fail("crashed " + block.attempts + " worker processes");
+                }
+            }
+
+            slot.crashes++;
+            slot.worker = null;
+            if (slot.crashes < MAX_ATTEMPTS) {
+                System.err.println("Restarting worker process " + slot.index + ".");
+                slot.start();
+            } else {
+                System.err.println("Worker process " + slot.index + " is not restarted again.");
+            }
+
+            for (Block block : unfinished) {
+                if (block.error != null) {
+                    continue;
+                }
+                if (slot.worker != null) {
+                    slot.assigned.addLast(block);
+                    slot.worker.send(block);
+                } else {
+                    try {
+                        assign(block);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        block.fail("interrupted");
+                    }
+                }
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Lines of a source file to be tagged by one worker, and their output.
+     */
+    private static class Block {
+        final OutputFile file;
+        final byte[] data;
+        final boolean isLast;
+        final CountDownLatch done = new CountDownLatch(1);
+        int id;
+        int attempts = 0;
+        byte[] outputAll;
+        byte[] outputPos;
+        byte[] outputTree;
+        String error;
+
+        Block(OutputFile file, byte[] data, boolean isLast) {
+            this.file = file;
+            this.data = data;
+            this.isLast = isLast;
+        }
+
+        void complete(byte[] outputAll, byte[] outputPos, byte[] outputTree) {
+            if (done.getCount() > 0) {
+                this.outputAll = outputAll;
+                this.outputPos = outputPos;
+                this.outputTree = outputTree;
+                done.countDown();
+            }
+        }
+
+        void fail(String error) {
+            if (done.getCount() > 0) {
+                this.error = error;
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * The outputs of a source file, open from its first block to its last.
+     */
+    private static class OutputFile {
+        final Boot.SourceFile sourceFile;
+        OutputStream outAll;
+        OutputStream outPos;
+        OutputStream outTree;
+        boolean isFailed = false;
+        boolean isWritten = false;
+        // The first block without any sentence, when sentences are split into separate lines.
+        Block emptyBlock;
+
+        OutputFile(Boot.SourceFile sourceFile) {
+            this.sourceFile = sourceFile;
+        }
+
+        void write(Block block) throws IOException {
+            outAll.write(block.outputAll);
+            if ((outPos != null) && (block.outputPos != null)) {
+                outPos.write(block.outputPos);
+            }
+            if ((outTree != null) && (block.outputTree != null)) {
+                outTree.write(block.outputTree);
+            }
+            block.outputAll = null;
+            block.outputPos = null;
+            block.outputTree = null;
+            isWritten = true;
+        }
+
+        void close() throws IOException {
+            if (outAll != null) {
+                outAll.close();
+            }
+            if (outPos != null) {
+                outPos.close();
+            }
+            if (outTree != null) {
+                outTree.close();
+            }
+        }
+    }
+
+    /**
+     * A place for one worker process and the blocks sent to it, in order. Guarded by the lock.
+     */
+    private class Slot {
+        final int index;
+        final Deque<Block> assigned = new ArrayDeque<Block>();
+        WorkerProcess worker;
+        int crashes = 0;
+
+        Slot(int index) {
+            this.index = index;
+        }
+
+        void start() {
+            try {
+                worker = new WorkerProcess(this);
+            } catch (IOException e) {
+                e.printStackTrace();
+                worker = null;
+            }
+        }
+    }
+
+    /**
+     * A running worker process, with a thread sending it blocks and another receiving their outputs.
+     */
+    private class WorkerProcess {
+        final Process process;
+        private final BlockingQueue<Block> toSend = new LinkedBlockingQueue<Block>();
+
+        WorkerProcess(final Slot slot) throws IOException {
+            ProcessBuilder processBuilder = new ProcessBuilder(command);
+            processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            process = processBuilder.start();
+
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream(),
+                    1 << 16));
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(process.getInputStream(),
+                    1 << 16));
+
+            Thread sender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Block block;
+                        while ((block = toSend.take()) != END_OF_BLOCKS) {
+                            out.writeInt(block.id);
+                            out.writeInt(block.data.length);
+                            out.write(block.data);
+                            out.flush();
+                        }
+                        out.writeInt(ProcessWorker.END);
+                        out.close();
+                    } catch (IOException e) {
+                        // The receiver sees the worker die.
+                        process.destroy();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "process-sender-" + slot.index);
+
+            final WorkerProcess worker = this;
+            Thread receiver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            int id = in.readInt();
+                            byte[] outputAll = readOutput(in);
+                            byte[] outputPos = readOutput(in);
+                            byte[] outputTree = readOutput(in);
+                            completed(slot, worker, id, outputAll, outputPos, outputTree);
+                        }
+                    } catch (IOException e) {
+                        // Fall through: the worker exited or its pipe is broken.
+                    }
+                    crashed(slot, worker, "exited");
+                    // Stop the sender, if it is still waiting for blocks.
+                    toSend.add(END_OF_BLOCKS);
+                }
+            }, "process-receiver-" + slot.index);
+
+            sender.setDaemon(true);
+            receiver.setDaemon(true);
+            sender.start();
+            receiver.start();
+        }
+
+        void send(Block block) {
+            toSend.add(block);
+        }
+
+        private byte[] readOutput(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] output = new byte[length];
+            in.readFully(output);
+            return output;
+        }
+    }
+}
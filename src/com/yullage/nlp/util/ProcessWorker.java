@@ -0,0 +1,79 @@
+package com.yullage.nlp.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The child side of {@link ProcessCoordinator}. Reads blocks of lines from standard input, tags each block with
+ * {@link Tagger#tagMultiLine} and writes its outputs to standard output. Anything else printed to standard output is
+ * sent to standard error, so that it cannot corrupt the blocks.
+ * <p>
+ * A block request is its id and its length followed by its UTF-8 lines; an id of {@link #END} ends the worker. A
+ * response is the id, then the length and bytes of the output for all factors, then those of the POS output and of the
+ * tree output, each with a length of -1 if there is none.
+ *
+ * @author Yu-chun Huang
+ */
+public class ProcessWorker {
+    static final int END = -1;
+
+    private final Config config;
+    private final Tagger tagger;
+
+    public ProcessWorker(Config config, Tagger tagger) {
+        this.config = config;
+        this.tagger = tagger;
+    }
+
+    public void run() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in),
+                1 << 16));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out),
+                1 << 16));
+        System.setOut(System.err);
+
+        boolean isWritePos = (config.taggerType == TaggerType.FACTOR) || (config.taggerType == TaggerType.JOINT);
+        boolean isWriteTree = (config.taggerType == TaggerType.JOINT);
+        while (true) {
+            int id;
+            try {
+                id = in.readInt();
+            } catch (EOFException e) {
+                break;
+            }
+            if (id == END) {
+                break;
+            }
+
+            byte[] block = new byte[in.readInt()];
+            in.readFully(block);
+
+            ByteArrayOutputStream outAll = new ByteArrayOutputStream(block.length * 4 + 16);
+            ByteArrayOutputStream outPos = isWritePos ? new ByteArrayOutputStream(block.length + 16) : null;
+            ByteArrayOutputStream outTree = isWriteTree ? new ByteArrayOutputStream(block.length * 4 + 16) : null;
+            Writer writerAll = new OutputStreamWriter(outAll, StandardCharsets.UTF_8);
+            Writer writerPos = isWritePos ? new OutputStreamWriter(outPos, StandardCharsets.UTF_8) : null;
+            Writer writerTree = isWriteTree ? new OutputStreamWriter(outTree, StandardCharsets.UTF_8) : null;
+            Reader reader = new Utf8LineReader(new ByteBufferInputStream(ByteBuffer.wrap(block)), 1 << 16);
+            tagger.tagMultiLine(reader, Arrays.asList(writerAll, writerPos, writerTree));
+
+            out.writeInt(id);
+            writeOutput(out, outAll);
+            writeOutput(out, outPos);
+            writeOutput(out, outTree);
+            out.flush();
+        }
+        out.close();
+    }
+
+    private static void writeOutput(DataOutputStream out, ByteArrayOutputStream output) throws IOException {
+        if (output == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(output.size());
+        output.writeTo(out);
+    }
+}
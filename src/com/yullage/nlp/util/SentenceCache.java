@@ -0,0 +1,153 @@
+package com.yullage.nlp.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the output of tagged sentences. The first tier is a bounded in-memory LRU map, the second an optional
+ * {@link DiskCache} of bounded size which survives between runs. Entries on disk are addressed by a hash of the
+ * sentence and of a fingerprint of everything which changes the output, i.e. the model and the relevant {@link Config}
+ * flags.
+ *
+ * @author Yu-chun Huang
+ */
+public class SentenceCache {
+    private final String fingerprint;
+    private final Map<String, String> memory;
+    private final DiskCache disk;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param capacity    Maximum number of entries kept in memory.
+     * @param diskDir     Directory of the on-disk store, or null to keep entries in memory only.
+     * @param diskSize    Size limit of the on-disk store in bytes.
+     * @param fingerprint Fingerprint of the model and the flags which change the output.
+     */
+    public SentenceCache(final int capacity, String diskDir, long diskSize, String fingerprint) {
+        this.fingerprint = fingerprint;
+        this.memory = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                if (size() > capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        DiskCache disk = null;
+        if ((diskDir != null) && (!"".equals(diskDir))) {
+            try {
+                disk = new DiskCache(Paths.get(diskDir), diskSize);
+            } catch (IOException e) {
+                // Go on with the memory tier only.
+                e.printStackTrace();
+            }
+        }
+        this.disk = disk;
+    }
+
+    /**
+     * Build a fingerprint from the given values. A value naming an existing file also contributes the file size and
+     * modification time, so that a replaced model gets a new fingerprint.
+     */
+    public static String fingerprint(Object... values) {
+        StringBuilder sb = new StringBuilder();
+        for (Object value : values) {
+            sb.append(value).append('\n');
+            if (value instanceof String) {
+                File file = new File((String) value);
+                if (file.isFile()) {
+                    sb.append(file.length()).append(' ').append(file.lastModified()).append('\n');
+                }
+            }
+        }
+        return sha1(sb.toString());
+    }
+
+    /**
+     * @param sentence Normalized sentence.
+     * @return Cached output, or null if the sentence is not cached.
+     */
+    public String get(String sentence) {
+        String value;
+        synchronized (memory) {
+            value = memory.get(sentence);
+        }
+        if (value != null) {
+            memoryHits.incrementAndGet();
+            return value;
+        }
+
+        if (disk != null) {
+            value = disk.get(diskKey(sentence), sentence);
+            if (value != null) {
+                diskHits.incrementAndGet();
+                synchronized (memory) {
+                    memory.put(sentence, value);
+                }
+                return value;
+            }
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String sentence, String value) {
+        synchronized (memory) {
+            memory.put(sentence, value);
+        }
+
+        if (disk != null) {
+            disk.put(diskKey(sentence), sentence, value);
+        }
+    }
+
+    public void printStats(PrintStream out) {
+        out.println("Sentence cache: " + memoryHits.get() + " memory hits, " + diskHits.get() + " disk hits, "
+                + misses.get() + " misses, " + evictions.get() + " evictions.");
+    }
+
+    /**
+     * @return The first 64 bits of the hash of the fingerprint and the sentence.
+     */
+    private long diskKey(String sentence) {
+        byte[] digest = sha1Digest(fingerprint + '\n' + sentence);
+        long key = 0;
+        for (int i = 0; i < 8; i++) {
+            key = (key << 8) | (digest[i] & 0xff);
+        }
+        return key;
+    }
+
+    private static String sha1(String s) {
+        byte[] digest = sha1Digest(s);
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] sha1Digest(String s) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(s.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.yullage.nlp.util;
+
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tags standard input to standard output with separate reader, tagger and writer stages connected by bounded queues.
+ * Output is flushed according to the configured {@link FlushPolicy}. Gzipped input is detected and decompressed, and
+ * output is compressed when gzipOutput is set; every flush then ends a gzip member.
+ *
+ * @author Yu-chun Huang
+ */
+public class StdioPipeline {
+    private static final int QUEUE_CAPACITY = 1024;
+
+    // Compared by identity, so it can never be confused with an input line.
+    private static final String END_OF_INPUT = new String();
+
+    private final Config config;
+    private final Tagger tagger;
+    private final CorpusIo corpusIo;
+
+    private final BlockingQueue<String> lines = new ArrayBlockingQueue<String>(QUEUE_CAPACITY);
+    private final BlockingQueue<String> outputs = new ArrayBlockingQueue<String>(QUEUE_CAPACITY);
+
+    public StdioPipeline(Config config, Tagger tagger) {
+        this.config = config;
+        this.tagger = tagger;
+        this.corpusIo = new CorpusIo(config);
+    }
+
+    public void run() {
+        Thread readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, "stdio-reader");
+        Thread writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "stdio-writer");
+
+        readerThread.setDaemon(true);
+        readerThread.start();
+        writerThread.start();
+
+        try {
+            try {
+                String line;
+                while ((line = lines.take()) != END_OF_INPUT) {
+                    StringWriter writer = new StringWriter();
+                    tagger.tagSingleLine(line, writer);
+                    writer.write("\n");
+                    outputs.put(writer.toString());
+                }
+            } finally {
+                // Always end the output, so that the writer thread finishes and the JVM can exit.
+                endOutput();
+            }
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void endOutput() {
+        // A full queue is drained by the writer, so this does not wait forever.
+        boolean isInterrupted = false;
+        while (true) {
+            try {
+                outputs.put(END_OF_INPUT);
+                break;
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void read() {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(CorpusIo.decompressed(System.in), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.put(line);
+            }
+            reader.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                lines.put(END_OF_INPUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void write() {
+        Writer writer = null;
+        try {
+            OutputStream out = config.gzipOutput ? corpusIo.compressed(System.out) : System.out;
+            writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 1 << 16);
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+        }
+
+        long flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(config.flushInterval);
+        long nextFlush = System.nanoTime() + flushIntervalNanos;
+        int unflushedLines = 0;
+
+        try {
+            // Keep draining after a write failure, so that the tagger never blocks on a full queue.
+            while (true) {
+                String output;
+                if ((config.flushPolicy == FlushPolicy.TIME) && (unflushedLines > 0)) {
+                    output = outputs.poll(Math.max(0, nextFlush - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } else {
+                    output = outputs.take();
+                }
+
+                if (output == END_OF_INPUT) {
+                    break;
+                }
+
+                if (writer == null) {
+                    continue;
+                }
+
+                try {
+                    if (output != null) {
+                        writer.write(output);
+                        unflushedLines++;
+                    }
+
+                    if (isFlushDue(unflushedLines, nextFlush)) {
+                        writer.flush();
+                        unflushedLines = 0;
+                        nextFlush = System.nanoTime() + flushIntervalNanos;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    writer = null;
+                }
+            }
+
+            if (writer != null) {
+                writer.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isFlushDue(int unflushedLines, long nextFlush) {
+        if (unflushedLines == 0) {
+            return false;
+        }
+
+        if (config.flushPolicy == FlushPolicy.BATCH) {
+            return unflushedLines >= config.flushBatchSize;
+        } else if (config.flushPolicy == FlushPolicy.TIME) {
+            return System.nanoTime() - nextFlush >= 0;
+        } else {
+            return true;
+        }
+    }
+}
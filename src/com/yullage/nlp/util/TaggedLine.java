@@ -0,0 +1,44 @@
+package com.yullage.nlp.util;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The tagged sentences of one input line, as returned by {@link Tagger#tagBatch(List)}.
+ *
+ * @author Yu-chun Huang
+ */
+public class TaggedLine {
+    private final LanguageType language;
+    private final List<TaggedSentence> sentences;
+    private final int wordCount;
+
+    TaggedLine(LanguageType language, List<TaggedSentence> sentences) {
+        this.language = language;
+        this.sentences = Collections.unmodifiableList(sentences);
+
+        int count = 0;
+        for (TaggedSentence sentence : sentences) {
+            count += sentence.size();
+        }
+        this.wordCount = count;
+    }
+
+    /**
+     * @return Language the line was tagged as.
+     */
+    public LanguageType language() {
+        return language;
+    }
+
+    /**
+     * @return Sentences of the line in input order. A line is one sentence unless sentences are split.
+     */
+    public List<TaggedSentence> sentences() {
+        return sentences;
+    }
+
+    public int wordCount() {
+        return wordCount;
+    }
+}
@@ -0,0 +1,167 @@
+package com.yullage.nlp.util;
+
+import edu.stanford.nlp.ling.TaggedWord;
+import edu.stanford.nlp.trees.LabeledScoredTreeReaderFactory;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeNormalizer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One tagged sentence, both in structured form and as the text the tagger writes for it. A sentence from
+ * {@link FactorTagger} has words, tags and, if the factor list uses them, lemmas. A sentence from {@link TreeTagger} has
+ * a tree, whose leaves and preterminals are its words and tags. A sentence from {@link JointTagger} has a tree and the
+ * factored sentence made from it. A tree taken from the sentence cache is only read back from its text when it is
+ * asked for.
+ *
+ * @author Yu-chun Huang
+ */
+public class TaggedSentence {
+    private final int size;
+    private List<String> words;
+    private List<String> tags;
+    private final List<String> lemmas;
+    private Tree tree;
+    private String text;
+    private final String posText;
+    private final TaggedSentence factored;
+
+    /**
+     * A factored sentence.
+     *
+     * @param tags    Tags after the POS rules, as in the factored text.
+     * @param lemmas  Lemmas, or null if the factor list does not use them.
+     * @param posText Tags before the POS rules, as in the POS-only output.
+     */
+    TaggedSentence(String[] words, String[] tags, String[] lemmas, String text, String posText) {
+        this.size = words.length;
+        this.words = Collections.unmodifiableList(Arrays.asList(words));
+        this.tags = Collections.unmodifiableList(Arrays.asList(tags));
+        this.lemmas = (lemmas != null) ? Collections.unmodifiableList(Arrays.asList(lemmas)) : null;
+        this.text = text;
+        this.posText = posText;
+        this.factored = null;
+    }
+
+    /**
+     * A parsed sentence. Either the tree or its text may be null.
+     *
+     * @param size Number of words in the input sentence.
+     */
+    TaggedSentence(int size, Tree tree, String text) {
+        this(size, tree, text, null);
+    }
+
+    /**
+     * A parsed sentence together with its factored sentence.
+     *
+     * @param factored The factored sentence, or null.
+     */
+    TaggedSentence(int size, Tree tree, String text, TaggedSentence factored) {
+        this.size = size;
+        this.tree = tree;
+        this.text = text;
+        this.lemmas = null;
+        this.posText = null;
+        this.factored = factored;
+    }
+
+    /**
+     * @return Number of words in the input sentence.
+     */
+    public int size() {
+        return size;
+    }
+
+    public synchronized List<String> words() {
+        if ((words == null) && (tree() != null)) {
+            readYield();
+        }
+        return words;
+    }
+
+    /**
+     * @return Tags of the factored text, or the preterminals of the tree.
+     */
+    public synchronized List<String> tags() {
+        if ((tags == null) && (tree() != null)) {
+            readYield();
+        }
+        return tags;
+    }
+
+    /**
+     * @return Lemmas, or null if the tagger does not produce them.
+     */
+    public List<String> lemmas() {
+        return lemmas;
+    }
+
+    /**
+     * @return The parse tree, or null for a factored sentence.
+     */
+    public synchronized Tree tree() {
+        if ((tree == null) && (text != null) && (posText == null)) {
+            tree = Tree.valueOf(text, new LabeledScoredTreeReaderFactory(new TreeNormalizer()));
+        }
+        return tree;
+    }
+
+    /**
+     * @return The factored sentence, or the tree in one-line bracketed form.
+     */
+    public synchronized String text() {
+        if (text == null) {
+            text = TreeSerializer.format(tree);
+        }
+        return text;
+    }
+
+    /**
+     * @return Tags as written to the POS-only output, or null for a parsed sentence.
+     */
+    public String posText() {
+        return posText;
+    }
+
+    /**
+     * @return The factored sentence made from the parse, or null if the tagger does not make one.
+     */
+    public TaggedSentence factored() {
+        return factored;
+    }
+
+    /**
+     * Write the text of the sentence, without printing a tree into a String first.
+     */
+    void write(TreeSerializer treeSerializer, Writer writer) throws IOException {
+        String printed;
+        Tree parsed;
+        synchronized (this) {
+            printed = text;
+            parsed = tree;
+        }
+
+        if (printed != null) {
+            writer.write(printed);
+        } else {
+            treeSerializer.write(parsed, writer);
+        }
+    }
+
+    private void readYield() {
+        List<String> yieldWords = new ArrayList<String>(size);
+        List<String> yieldTags = new ArrayList<String>(size);
+        for (TaggedWord tw : tree.taggedYield()) {
+            yieldWords.add(tw.word());
+            yieldTags.add(tw.tag());
+        }
+        words = Collections.unmodifiableList(yieldWords);
+        tags = Collections.unmodifiableList(yieldTags);
+    }
+}
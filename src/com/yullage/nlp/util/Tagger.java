@@ -1,5 +1,7 @@
 package com.yullage.nlp.util;
 
+import java.io.IOException;
+import java.io.PrintStream;
 import java.io.Reader;
 import java.io.Writer;
 import java.util.List;
@@ -11,4 +13,44 @@ public interface Tagger {
     void tagSingleLine(String sentence, Writer writer);
 
     void tagMultiLine(Reader reader, List<Writer> writers);
+
+    /**
+     * Tag a batch of lines at once, so that the per-call work is shared by the whole batch. Each line is tagged the same
+     * way as by {@link #tagSingleLine(String, Writer)}.
+     *
+     * @param lines Lines to tag.
+     * @return The tagged lines, in input order.
+     * @throws IOException If parsing is interrupted or fails on a parse thread.
+     */
+    List<TaggedLine> tagBatch(List<String> lines) throws IOException;
+
+    /**
+     * Write a line tagged by {@link #tagBatch(List)} the same way as {@link #tagSingleLine(String, Writer)} does.
+     */
+    void writeSingleLine(TaggedLine taggedLine, Writer writer) throws IOException;
+
+    /**
+     * Create a tagger which shares the loaded models with this one but owns its own per-thread state.
+     *
+     * @return A tagger which is safe to use on another thread.
+     */
+    Tagger fork();
+
+    /**
+     * @return Fingerprint of the models and the options which change the tagged output of a sentence.
+     */
+    String fingerprint();
+
+    /**
+     * Print statistics collected over the whole run.
+     *
+     * @param out Stream to print to.
+     */
+    void printStats(PrintStream out);
+
+    /**
+     * Release what the tagger holds for the whole run, such as the stats file writer. Forks share it with the tagger
+     * they were made from, so only that tagger is closed, once its forks are done.
+     */
+    void close();
 }
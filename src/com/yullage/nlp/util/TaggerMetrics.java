@@ -0,0 +1,518 @@
+package com.yullage.nlp.util;
+
+import edu.stanford.nlp.ling.HasWord;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Line, sentence and token counters, per-stage latency histograms and a log of slow sentences, shared by a tagger and
+ * its forks. The statistics are registered as an MXBean named "com.yullage.nlp.util:type=TaggerMetrics,name=..." and,
+ * if a stats file is configured, written to it as JSON every statsInterval seconds and once more on close or exit.
+ * <p>
+ * Metrics writing to the same stats file share one timer and one shutdown hook, which write the metrics opened last
+ * and are stopped when the last of them is closed.
+ * <p>
+ * Read, tokenize and write latencies are recorded per line; tag, lemma and parse latencies per sentence. The lemma
+ * stage covers everything between tagging or parsing and writing: lemmas, POS rules and building the output.
+ *
+ * @author Yu-chun Huang
+ */
+public class TaggerMetrics implements TaggerMetricsMXBean {
+    public enum Stage {
+        READ, TOKENIZE, TAG, LEMMA, PARSE, WRITE;
+
+        public String key() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final int SLOW_SENTENCE_LOG_SIZE = 100;
+
+    private final long slowSentenceNanos;
+    private final String name;
+    private final StatsWriter statsWriter;
+    private final long startTime = System.nanoTime();
+
+    private final AtomicLong lineCount = new AtomicLong();
+    private final AtomicLong sentenceCount = new AtomicLong();
+    private final AtomicLong tokenCount = new AtomicLong();
+    private final AtomicLong slowSentenceCount = new AtomicLong();
+    private final AtomicLong lengthFallbackCount = new AtomicLong();
+    private final AtomicLong timeoutFallbackCount = new AtomicLong();
+    private final Histogram[] histograms = new Histogram[Stage.values().length];
+    private final Deque<SlowSentence> slowSentences = new ArrayDeque<SlowSentence>();
+
+    /**
+     * @param name   Name of the tagger, used in the MXBean name.
+     * @param config Configuration of the tagger.
+     */
+    public TaggerMetrics(String name, Config config) {
+        this.slowSentenceNanos = config.slowSentenceMillis * 1000000L;
+        this.name = name;
+
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+
+        register(name);
+
+        if (config.statsFile != null) {
+            statsWriter = StatsWriter.open(Paths.get(config.statsFile), Math.max(1, config.statsInterval) * 1000L, this);
+        } else {
+            statsWriter = null;
+        }
+    }
+
+    private static ObjectName objectName(String name) throws JMException {
+        return new ObjectName("com.yullage.nlp.util:type=TaggerMetrics,name=" + name);
+    }
+
+    private void register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = objectName(name);
+            try {
+                server.registerMBean(this, objectName);
+            } catch (InstanceAlreadyExistsException e) {
+                server.unregisterMBean(objectName);
+                server.registerMBean(this, objectName);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write the stats file a last time, stop writing it once no other metrics share it, and unregister the MXBean.
+     * Closing twice does nothing more.
+     */
+    public void close() {
+        if (statsWriter != null) {
+            statsWriter.close(this);
+        }
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = objectName(name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void addLine() {
+        lineCount.incrementAndGet();
+    }
+
+    public void addSentence(int tokens) {
+        sentenceCount.incrementAndGet();
+        tokenCount.addAndGet(tokens);
+    }
+
+    /**
+     * Count a sentence which got a fallback tree instead of a parse.
+     *
+     * @param isTimeout Whether the parse ran out of time, rather than the sentence being too long.
+     */
+    public void addParseFallback(boolean isTimeout) {
+        if (isTimeout) {
+            timeoutFallbackCount.incrementAndGet();
+        } else {
+            lengthFallbackCount.incrementAndGet();
+        }
+    }
+
+    public void record(Stage stage, long nanos) {
+        histograms[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * Record the latency of one sentence, and log the sentence if it was slow.
+     */
+    public void recordSentence(Stage stage, List<? extends HasWord> sentence, long nanos) {
+        record(stage, nanos);
+
+        if ((slowSentenceNanos > 0) && (nanos >= slowSentenceNanos)) {
+            StringBuilder sb = new StringBuilder();
+            for (HasWord word : sentence) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(word.word());
+            }
+
+            SlowSentence slowSentence = new SlowSentence(stage, nanos, sentence.size(), sb.toString());
+            slowSentenceCount.incrementAndGet();
+            synchronized (slowSentences) {
+                if (slowSentences.size() >= SLOW_SENTENCE_LOG_SIZE) {
+                    slowSentences.poll();
+                }
+                slowSentences.add(slowSentence);
+            }
+            System.err.println("Slow sentence: " + slowSentence);
+        }
+    }
+
+    @Override
+    public long getLineCount() {
+        return lineCount.get();
+    }
+
+    @Override
+    public long getSentenceCount() {
+        return sentenceCount.get();
+    }
+
+    @Override
+    public long getTokenCount() {
+        return tokenCount.get();
+    }
+
+    @Override
+    public long getLengthFallbackCount() {
+        return lengthFallbackCount.get();
+    }
+
+    @Override
+    public long getTimeoutFallbackCount() {
+        return timeoutFallbackCount.get();
+    }
+
+    @Override
+    public Map<String, Long> getStageCounts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (Stage stage : Stage.values()) {
+            counts.put(stage.key(), histograms[stage.ordinal()].count.get());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getStageMeanMillis() {
+        Map<String, Double> means = new LinkedHashMap<String, Double>();
+        for (Stage stage : Stage.values()) {
+            means.put(stage.key(), histograms[stage.ordinal()].meanMillis());
+        }
+        return means;
+    }
+
+    @Override
+    public Map<String, Double> getStageP50Millis() {
+        return percentiles(0.5);
+    }
+
+    @Override
+    public Map<String, Double> getStageP99Millis() {
+        return percentiles(0.99);
+    }
+
+    @Override
+    public Map<String, Double> getStageMaxMillis() {
+        Map<String, Double> maxima = new LinkedHashMap<String, Double>();
+        for (Stage stage : Stage.values()) {
+            maxima.put(stage.key(), histograms[stage.ordinal()].max.get() / 1e6);
+        }
+        return maxima;
+    }
+
+    private Map<String, Double> percentiles(double p) {
+        Map<String, Double> percentiles = new LinkedHashMap<String, Double>();
+        for (Stage stage : Stage.values()) {
+            percentiles.put(stage.key(), histograms[stage.ordinal()].percentileMillis(p));
+        }
+        return percentiles;
+    }
+
+    @Override
+    public long getSlowSentenceCount() {
+        return slowSentenceCount.get();
+    }
+
+    @Override
+    public List<String> getSlowSentences() {
+        List<String> list = new ArrayList<String>();
+        for (SlowSentence slowSentence : slowSentenceSnapshot()) {
+            list.add(slowSentence.toString());
+        }
+        return list;
+    }
+
+    private List<SlowSentence> slowSentenceSnapshot() {
+        synchronized (slowSentences) {
+            return new ArrayList<SlowSentence>(slowSentences);
+        }
+    }
+
+    @Override
+    public String getStatsJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"elapsedSeconds\": ").append(format((System.nanoTime() - startTime) / 1e9)).append(",\n");
+        sb.append("  \"lines\": ").append(lineCount.get()).append(",\n");
+        sb.append("  \"sentences\": ").append(sentenceCount.get()).append(",\n");
+        sb.append("  \"tokens\": ").append(tokenCount.get()).append(",\n");
+        sb.append("  \"parseFallbacks\": {\"length\": ").append(lengthFallbackCount.get());
+        sb.append(", \"timeout\": ").append(timeoutFallbackCount.get()).append("},\n");
+        sb.append("  \"stages\": {");
+        for (Stage stage : Stage.values()) {
+            Histogram histogram = histograms[stage.ordinal()];
+            sb.append(stage.ordinal() == 0 ? "\n" : ",\n");
+            sb.append("    \"").append(stage.key()).append("\": {\"count\": ").append(histogram.count.get());
+            sb.append(", \"meanMillis\": ").append(format(histogram.meanMillis()));
+            sb.append(", \"p50Millis\": ").append(format(histogram.percentileMillis(0.5)));
+            sb.append(", \"p99Millis\": ").append(format(histogram.percentileMillis(0.99)));
+            sb.append(", \"maxMillis\": ").append(format(histogram.max.get() / 1e6)).append('}');
+        }
+        sb.append("\n  },\n");
+        sb.append("  \"slowSentenceCount\": ").append(slowSentenceCount.get()).append(",\n");
+        sb.append("  \"slowSentences\": [");
+        boolean isFirst = true;
+        for (SlowSentence slowSentence : slowSentenceSnapshot()) {
+            sb.append(isFirst ? "\n" : ",\n");
+            isFirst = false;
+            sb.append("    {\"stage\": \"").append(slowSentence.stage.key()).append('"');
+            sb.append(", \"millis\": ").append(format(slowSentence.nanos / 1e6));
+            sb.append(", \"words\": ").append(slowSentence.words);
+            sb.append(", \"sentence\": ");
+            appendJsonString(sb, slowSentence.text);
+            sb.append('}');
+        }
+        sb.append(isFirst ? "]\n" : "\n  ]\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Replace the stats file with the current statistics.
+     */
+    public void writeStatsFile() {
+        if (statsWriter != null) {
+            statsWriter.write(this);
+        }
+    }
+
+    public void printStats(PrintStream out) {
+        out.println(String.format("Tagged %d lines, %d sentences, %d tokens; %d slow sentences.", lineCount.get(),
+                sentenceCount.get(), tokenCount.get(), slowSentenceCount.get()));
+        if ((lengthFallbackCount.get() > 0) || (timeoutFallbackCount.get() > 0)) {
+            out.println(String.format("Parse fallbacks: %d sentences too long, %d out of time.",
+                    lengthFallbackCount.get(), timeoutFallbackCount.get()));
+        }
+        for (Stage stage : Stage.values()) {
+            Histogram histogram = histograms[stage.ordinal()];
+            long count = histogram.count.get();
+            if (count > 0) {
+                out.println(String.format("Stage %-8s: %d, mean %.2f ms, p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+                        stage.key(), count, histogram.meanMillis(), histogram.percentileMillis(0.5),
+                        histogram.percentileMillis(0.99), histogram.max.get() / 1e6));
+            }
+        }
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static void appendJsonString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c == '"') || (c == '\\')) {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Writes the metrics opened last of those sharing one stats file, every period and once more on exit.
+     */
+    private static class StatsWriter {
+        private static final Map<Path, StatsWriter> WRITERS = new HashMap<Path, StatsWriter>();
+
+        private final Path target;
+        private final Timer timer;
+        private final Thread shutdownHook;
+        // Oldest first.
+        private final List<TaggerMetrics> metrics = new ArrayList<TaggerMetrics>();
+
+        private StatsWriter(Path target, long period) {
+            this.target = target;
+
+            timer = new Timer("stats-writer", true);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    writeLatest();
+                }
+            }, period, period);
+
+            shutdownHook = new Thread("stats-writer-final") {
+                @Override
+                public void run() {
+                    writeLatest();
+                }
+            };
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        }
+
+        static StatsWriter open(Path statsFile, long period, TaggerMetrics metrics) {
+            Path target = statsFile.toAbsolutePath().normalize();
+            synchronized (WRITERS) {
+                StatsWriter writer = WRITERS.get(target);
+                if (writer == null) {
+                    writer = new StatsWriter(target, period);
+                    WRITERS.put(target, writer);
+                }
+                synchronized (writer) {
+                    writer.metrics.add(metrics);
+                }
+                return writer;
+            }
+        }
+
+        void close(TaggerMetrics closed) {
+            boolean isLast;
+            synchronized (WRITERS) {
+                synchronized (this) {
+                    if (!metrics.remove(closed)) {
+                        return;
+                    }
+                    isLast = metrics.isEmpty();
+                }
+                if (isLast) {
+                    WRITERS.remove(target);
+                }
+            }
+
+            if (isLast) {
+                timer.cancel();
+                try {
+                    Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                } catch (IllegalStateException e) {
+                    // Already shutting down, and the hook writes the same file.
+                }
+                write(closed);
+            } else {
+                writeLatest();
+            }
+        }
+
+        private void writeLatest() {
+            TaggerMetrics latest;
+            synchronized (this) {
+                if (metrics.isEmpty()) {
+                    return;
+                }
+                latest = metrics.get(metrics.size() - 1);
+            }
+            write(latest);
+        }
+
+        /**
+         * Replace the file atomically, so that readers never see it half written.
+         */
+        synchronized void write(TaggerMetrics source) {
+            try {
+                Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+                try {
+                    Files.write(tmp, source.getStatsJson().getBytes(StandardCharsets.UTF_8));
+                    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Latency histogram with power-of-two microsecond buckets. Percentiles are reported as the upper bound of their
+     * bucket, capped by the maximum seen.
+     */
+    private static class Histogram {
+        private static final int BUCKETS = 40;
+
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = nanos / 1000;
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+
+            long curMax;
+            while (nanos > (curMax = max.get())) {
+                if (max.compareAndSet(curMax, nanos)) {
+                    break;
+                }
+            }
+        }
+
+        double meanMillis() {
+            long n = count.get();
+            return (n == 0) ? 0 : totalNanos.get() / 1e6 / n;
+        }
+
+        double percentileMillis(double p) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(p * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(1L << i, max.get() / 1000.0) / 1000.0;
+                }
+            }
+            return max.get() / 1e6;
+        }
+    }
+
+    /**
+     * A sentence that took at least slowSentenceMillis in one stage.
+     */
+    private static class SlowSentence {
+        final Stage stage;
+        final long nanos;
+        final int words;
+        final String text;
+
+        SlowSentence(Stage stage, long nanos, int words, String text) {
+            this.stage = stage;
+            this.nanos = nanos;
+            this.words = words;
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %.1f ms, %d words: %s", stage.key(), nanos / 1e6, words, text);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.yullage.nlp.util;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tagging statistics published through JMX. Stage maps are keyed by the stage name, e.g. "parse".
+ *
+ * @author Yu-chun Huang
+ */
+public interface TaggerMetricsMXBean {
+    long getLineCount();
+
+    long getSentenceCount();
+
+    long getTokenCount();
+
+    /**
+     * @return Number of sentences which got a fallback tree because they were longer than the parse length limit.
+     */
+    long getLengthFallbackCount();
+
+    /**
+     * @return Number of sentences which got a fallback tree because their parse ran out of time.
+     */
+    long getTimeoutFallbackCount();
+
+    Map<String, Long> getStageCounts();
+
+    Map<String, Double> getStageMeanMillis();
+
+    Map<String, Double> getStageP50Millis();
+
+    Map<String, Double> getStageP99Millis();
+
+    Map<String, Double> getStageMaxMillis();
+
+    long getSlowSentenceCount();
+
+    /**
+     * @return The most recent slow sentences, oldest first.
+     */
+    List<String> getSlowSentences();
+
+    String getStatsJson();
+}
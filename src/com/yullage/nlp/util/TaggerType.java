@@ -8,5 +8,5 @@ package com.yullage.nlp.util;
  *
  */
 public enum TaggerType {
-	FACTOR, TREE
+	FACTOR, TREE, JOINT
 }
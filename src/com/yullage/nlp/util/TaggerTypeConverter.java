@@ -18,6 +18,8 @@ public class TaggerTypeConverter implements IStringConverter<TaggerType> {
 			return TaggerType.FACTOR;
 		} else if ("tree".equals(value)) {
 			return TaggerType.TREE;
+		} else if ("joint".equals(value)) {
+			return TaggerType.JOINT;
 		} else {
 			throw new ParameterException("Tagger type \"" + value + "\" is not available.");
 		}
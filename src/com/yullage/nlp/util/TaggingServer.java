@@ -0,0 +1,209 @@
+package com.yullage.nlp.util;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Keeps the tagger models loaded and tags lines sent over local TCP connections. Every input line gets the same
+ * output as in stdio mode, so with eofMark each response ends with "__EOF__". Lines from all connections are put on
+ * one queue and tagged in batches by the worker threads. A line which fails to tag gets "__ERROR__" as its output.
+ *
+ * @author Yu-chun Huang
+ */
+public class TaggingServer {
+    private static final int MAX_PENDING_PER_CONNECTION = 64;
+    private static final String ERROR_MARK = "__ERROR__";
+
+    private final Config config;
+    private final Tagger tagger;
+    private final BlockingQueue<Request> requests;
+
+    public TaggingServer(Config config, Tagger tagger) {
+        this.config = config;
+        this.tagger = tagger;
+        this.requests = new LinkedBlockingQueue<Request>(config.serverBatchSize * Math.max(1, config.threads) * 4);
+    }
+
+    public void run() throws IOException {
+        int numThreads = Math.max(1, config.threads);
+        ExecutorService workerExecutor = Executors.newFixedThreadPool(numThreads);
+        workerExecutor.execute(new Worker(tagger));
+        for (int i = 1; i < numThreads; i++) {
+            workerExecutor.execute(new Worker(tagger.fork()));
+        }
+
+        ExecutorService connectionExecutor = Executors.newCachedThreadPool();
+        ServerSocket serverSocket = new ServerSocket(config.port, 50, InetAddress.getByName(config.host));
+        System.err.println("Listening on " + serverSocket.getLocalSocketAddress() + ".");
+
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Connection connection = new Connection(socket);
+                connectionExecutor.execute(connection.reader());
+                connectionExecutor.execute(connection.writer());
+            }
+        } finally {
+            serverSocket.close();
+            connectionExecutor.shutdownNow();
+            workerExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * One input line and its tagged output.
+     */
+    private static class Request {
+        final String line;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile String output;
+
+        Request(String line) {
+            this.line = line;
+        }
+    }
+
+    /**
+     * Tags the lines of all connections in batches. A line which fails to tag gets an error line.
+     */
+    private class Worker extends BatchWorker<Request> {
+        Worker(Tagger workerTagger) {
+            super(workerTagger, requests, config.serverBatchSize);
+        }
+
+        @Override
+        boolean isStopping() {
+            // Runs until the server shuts the workers down.
+            return false;
+        }
+
+        @Override
+        List<String> lines(Request request) {
+            return Collections.singletonList(request.line);
+        }
+
+        @Override
+        void complete(Request request, List<TaggedLine> taggedLines) throws IOException {
+            StringWriter writer = new StringWriter();
+            tagger.writeSingleLine(taggedLines.get(0), writer);
+            writer.write("\n");
+            request.output = writer.toString();
+            request.done.countDown();
+        }
+
+        /**
+         * Answer a line which could not be tagged with an error line, so that the client is not left waiting.
+         */
+        @Override
+        void fail(Request request, Throwable t) {
+            System.err.println("Failed to tag a line: " + t);
+            t.printStackTrace();
+            request.output = ERROR_MARK + "\n" + (config.eofMark ? "__EOF__\n" : "") + "\n";
+            request.done.countDown();
+        }
+    }
+
+    /**
+     * A client connection. The reader queues each line for tagging, and the writer sends back the outputs in input
+     * order, so a client can send lines without waiting for each response.
+     */
+    private class Connection {
+        private final Socket socket;
+        private final BlockingQueue<Request> pending = new ArrayBlockingQueue<Request>(MAX_PENDING_PER_CONNECTION);
+        private final Request endOfInput = new Request(null);
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        Runnable reader() {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            Request request = new Request(line);
+                            pending.put(request);
+                            requests.put(request);
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        try {
+                            pending.put(endOfInput);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            };
+        }
+
+        Runnable writer() {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    Writer writer = null;
+                    try {
+                        writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        close();
+                    }
+
+                    try {
+                        // Keep draining after a write failure, so that the reader never blocks on a full queue.
+                        Request request;
+                        while ((request = pending.take()) != endOfInput) {
+                            request.done.await();
+                            if (writer == null) {
+                                continue;
+                            }
+
+                            try {
+                                if (request.output != null) {
+                                    writer.write(request.output);
+                                }
+
+                                if (pending.isEmpty()) {
+                                    writer.flush();
+                                }
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                                writer = null;
+                                close();
+                            }
+                        }
+
+                        if (writer != null) {
+                            writer.flush();
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        close();
+                    }
+                }
+            };
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.yullage.nlp.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Tags lines for code running in the same JVM. One service loads the models once and is shared by any number of
+ * calling threads: requests go on a bounded queue, and each worker thread takes whatever requests are waiting and tags
+ * them as one batch with its own fork of the tagger. When the queue is full, {@link #tag} blocks until there is room,
+ * so callers cannot get ahead of the workers by more than the queue holds.
+ * <p>
+ * The number of workers is set by threads and the batch size by serverBatchSize, as for the server mode.
+ *
+ * @author Yu-chun Huang
+ */
+public class TaggingService {
+    private final Config config;
+    private final BlockingQueue<Request<?>> requests;
+    private final ExecutorService workerExecutor;
+    // Closed with the service when the service loaded it.
+    private final Tagger ownTagger;
+    private volatile boolean isClosed = false;
+
+    /**
+     * Receives the result of a request on the worker thread which completed it.
+     */
+    public interface Callback<T> {
+        void onSuccess(T result);
+
+        void onFailure(Throwable t);
+    }
+
+    /**
+     * Load the tagger of the configured type.
+     */
+    public TaggingService(Config config) {
+        this(config, newTagger(config), true);
+    }
+
+    /**
+     * @param tagger Tagger to use. The service forks it for its other workers, and it must not be used elsewhere.
+     */
+    public TaggingService(Config config, Tagger tagger) {
+        this(config, tagger, false);
+    }
+
+    private TaggingService(Config config, Tagger tagger, boolean isOwnTagger) {
+        this.config = config;
+        this.ownTagger = isOwnTagger ? tagger : null;
+        int numThreads = Math.max(1, config.threads);
+        this.requests = new ArrayBlockingQueue<Request<?>>(Math.max(1, config.serverBatchSize) * numThreads * 4);
+
+        this.workerExecutor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "tagging-service");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        workerExecutor.execute(new Worker(tagger));
+        for (int i = 1; i < numThreads; i++) {
+            workerExecutor.execute(new Worker(tagger.fork()));
+        }
+    }
+
+    private static Tagger newTagger(Config config) {
+        if (config.taggerType == TaggerType.FACTOR) {
+            return new FactorTagger(config);
+        } else if (config.taggerType == TaggerType.TREE) {
+            return new TreeTagger(config);
+        } else if (config.taggerType == TaggerType.JOINT) {
+            return new JointTagger(config);
+        } else {
+            throw new IllegalArgumentException("No such tagger.");
+        }
+    }
+
+    public Future<TaggedLine> tag(String line) throws InterruptedException {
+        return tag(line, null);
+    }
+
+    /**
+     * Queue one line for tagging, waiting while the queue is full.
+     *
+     * @param callback Called once the line is tagged or has failed, or null.
+     * @return The tagged line.
+     * @throws RejectedExecutionException If the service is closed.
+     */
+    public Future<TaggedLine> tag(String line, Callback<TaggedLine> callback) throws InterruptedException {
+        Request<TaggedLine> request = new Request<TaggedLine>(Collections.singletonList(line), callback) {
+            @Override
+            void complete(List<TaggedLine> taggedLines) {
+                set(taggedLines.get(0));
+            }
+        };
+        submit(request);
+        return request;
+    }
+
+    public Future<List<TaggedLine>> tagAll(List<String> lines) throws InterruptedException {
+        return tagAll(lines, null);
+    }
+
+    /**
+     * Queue lines to be tagged together, waiting while the queue is full.
+     *
+     * @param callback Called once the lines are tagged or have failed, or null.
+     * @return The tagged lines, in input order.
+     * @throws RejectedExecutionException If the service is closed.
+     */
+    public Future<List<TaggedLine>> tagAll(List<String> lines, Callback<List<TaggedLine>> callback)
+            throws InterruptedException {
+        Request<List<TaggedLine>> request = new Request<List<TaggedLine>>(new ArrayList<String>(lines), callback) {
+            @Override
+            void complete(List<TaggedLine> taggedLines) {
+                set(new ArrayList<TaggedLine>(taggedLines));
+            }
+        };
+        submit(request);
+        return request;
+    }
+
+    private void submit(Request<?> request) throws InterruptedException {
+        if (isClosed) {
+            throw new RejectedExecutionException("Tagging service is closed.");
+        }
+
+        requests.put(request);
+
+        // Closed while waiting for room: take the request back, unless a worker or close() already has it.
+        if (isClosed && requests.remove(request)) {
+            throw new RejectedExecutionException("Tagging service is closed.");
+        }
+    }
+
+    /**
+     * Stop accepting requests, finish the queued ones and stop the workers. A tagger the service loaded itself is
+     * closed too.
+     */
+    public void close() throws InterruptedException {
+        isClosed = true;
+        workerExecutor.shutdown();
+        workerExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        List<Request<?>> abandoned = new ArrayList<Request<?>>();
+        requests.drainTo(abandoned);
+        for (Request<?> request : abandoned) {
+            request.fail(new RejectedExecutionException("Tagging service is closed."));
+        }
+
+        if (ownTagger != null) {
+            ownTagger.close();
+        }
+    }
+
+    /**
+     * The lines of one call and the future of their result, set by the worker which tags them. A request cancelled
+     * before a worker takes it is skipped.
+     */
+    private abstract static class Request<T> implements Future<T> {
+        private static final int PENDING = 0;
+        private static final int SUCCEEDED = 1;
+        private static final int FAILED = 2;
+        private static final int CANCELLED = 3;
+
+        final List<String> lines;
+        private final Callback<T> callback;
+
+        private int state = PENDING;
+        private T result;
+        private Throwable failure;
+
+        Request(List<String> lines, Callback<T> callback) {
+            this.lines = lines;
+            this.callback = callback;
+        }
+
+        abstract void complete(List<TaggedLine> taggedLines);
+
+        void set(T value) {
+            if (finish(SUCCEEDED, value, null) && (callback != null)) {
+                notifyCallback();
+            }
+        }
+
+        void fail(Throwable t) {
+            if (finish(FAILED, null, t) && (callback != null)) {
+                notifyCallback();
+            }
+        }
+
+        /**
+         * @return True if the request was pending and is now done.
+         */
+        private synchronized boolean finish(int newState, T value, Throwable t) {
+            if (state != PENDING) {
+                return false;
+            }
+            state = newState;
+            result = value;
+            failure = t;
+            notifyAll();
+            return true;
+        }
+
+        private void notifyCallback() {
+            // Called outside the lock, as the callback may block or call back into this request.
+            try {
+                if (failure != null) {
+                    callback.onFailure(failure);
+                } else {
+                    callback.onSuccess(result);
+                }
+            } catch (RuntimeException e) {
+                // A failing callback must not stop the worker.
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * A worker which already has the lines tags them anyway, so there is nothing to interrupt.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return finish(CANCELLED, null, null);
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return state != PENDING;
+        }
+
+        @Override
+        public synchronized T get() throws InterruptedException, ExecutionException {
+            while (state == PENDING) {
+                wait();
+            }
+            return report();
+        }
+
+        @Override
+        public synchronized T get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (state == PENDING) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return report();
+        }
+
+        private T report() throws ExecutionException {
+            if (state == CANCELLED) {
+                throw new CancellationException();
+            } else if (state == FAILED) {
+                throw new ExecutionException(failure);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Tags the lines of the waiting requests in batches, until the service is closed and the queue is empty.
+     */
+    private class Worker extends BatchWorker<Request<?>> {
+        Worker(Tagger workerTagger) {
+            super(workerTagger, requests, config.serverBatchSize);
+        }
+
+        @Override
+        boolean isStopping() {
+            return isClosed;
+        }
+
+        @Override
+        List<String> lines(Request<?> request) {
+            return request.lines;
+        }
+
+        @Override
+        boolean isCancelled(Request<?> request) {
+            return request.isCancelled();
+        }
+
+        @Override
+        void complete(Request<?> request, List<TaggedLine> taggedLines) {
+            request.complete(taggedLines);
+        }
+
+        @Override
+        void fail(Request<?> request, Throwable t) {
+            request.fail(t);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.yullage.nlp.util;
+
+import edu.stanford.nlp.process.Morphology;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreebankLanguagePack;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a parse tree in the one-line bracketed form straight into a writer. The output of {@link #prepare} followed by
+ * {@link #write} is the same as {@link edu.stanford.nlp.trees.TreePrint} with the "oneline" format and the
+ * "removeTopBracket" and "stem" options, without the intermediate tree copy and String. Not thread safe, because of
+ * the {@link Morphology} used for stemming.
+ *
+ * @author Yu-chun Huang
+ */
+public class TreeSerializer {
+    private final boolean removeTopBracket;
+    private final Morphology morph;
+
+    /**
+     * @param removeTopBracket Whether to remove a unary top bracket labeled with the start symbol.
+     * @param stem             Whether to replace each word with its stem.
+     */
+    public TreeSerializer(boolean removeTopBracket, boolean stem) {
+        this.removeTopBracket = removeTopBracket;
+        this.morph = stem ? new Morphology() : null;
+    }
+
+    /**
+     * Remove the top bracket and stem the words, as configured. Stemming modifies the leaves of the tree.
+     *
+     * @param tree The parse tree.
+     * @param tlp  Language pack which tells the start symbol.
+     * @return The tree to write.
+     */
+    public Tree prepare(Tree tree, TreebankLanguagePack tlp) {
+        if (removeTopBracket && tlp.isStartSymbol(tree.label().value())) {
+            if (tree.isUnaryRewrite()) {
+                tree = tree.firstChild();
+            } else {
+                System.err.println("TreePrint: can't remove top bracket: not unary");
+            }
+        }
+
+        if (morph != null) {
+            stem(tree, null);
+        }
+
+        return tree;
+    }
+
+    /**
+     * Write a prepared tree without a trailing newline.
+     */
+    public void write(Tree tree, Writer writer) throws IOException {
+        writeNode(tree, writer);
+    }
+
+    /**
+     * @return A prepared tree in one-line bracketed form.
+     */
+    public String toString(Tree tree) {
+        return format(tree);
+    }
+
+    /**
+     * @return A prepared tree in one-line bracketed form.
+     */
+    public static String format(Tree tree) {
+        StringBuilder sb = new StringBuilder();
+        appendNode(tree, sb);
+        return sb.toString();
+    }
+
+    private void stem(Tree t, String tag) {
+        if (t.isPreTerminal()) {
+            tag = t.label().value();
+        }
+
+        if (t.isLeaf()) {
+            t.label().setValue(morph.lemma(t.label().value(), tag));
+        } else {
+            for (Tree kid : t.children()) {
+                stem(kid, tag);
+            }
+        }
+    }
+
+    private static void writeNode(Tree t, Writer writer) throws IOException {
+        String value = t.label().value();
+        if (t.isLeaf()) {
+            writer.write(String.valueOf(value));
+            return;
+        }
+
+        writer.write('(');
+        if (value != null) {
+            writer.write(value);
+        }
+        for (Tree kid : t.children()) {
+            writer.write(' ');
+            writeNode(kid, writer);
+        }
+        writer.write(')');
+    }
+
+    /**
+     * Same as {@link #writeNode}, but into a StringBuilder, which cannot fail.
+     */
+    private static void appendNode(Tree t, StringBuilder sb) {
+        String value = t.label().value();
+        if (t.isLeaf()) {
+            sb.append(value);
+            return;
+        }
+
+        sb.append('(');
+        if (value != null) {
+            sb.append(value);
+        }
+        for (Tree kid : t.children()) {
+            sb.append(' ');
+            appendNode(kid, sb);
+        }
+        sb.append(')');
+    }
+}
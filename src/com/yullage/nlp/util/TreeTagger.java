@@ -5,106 +5,162 @@ package com.yullage.nlp.util;
 
 import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.ling.HasWord;
+import edu.stanford.nlp.ling.Sentence;
+import edu.stanford.nlp.ling.TaggedWord;
 import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
 import edu.stanford.nlp.process.CoreLabelTokenFactory;
 import edu.stanford.nlp.process.DocumentPreprocessor;
 import edu.stanford.nlp.process.PTBTokenizer;
 import edu.stanford.nlp.process.TokenizerFactory;
 import edu.stanford.nlp.trees.Tree;
-import edu.stanford.nlp.trees.TreePrint;
 import edu.stanford.nlp.trees.TreebankLanguagePack;
 import edu.stanford.nlp.util.Function;
 import edu.stanford.nlp.util.ReflectionLoading;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 /**
  * @author Yu-chun Huang
  */
 public class TreeTagger implements Tagger {
     public static final String[] DEFAULT_SENTENCE_DELIMS = {".", "?", "!", "。", "？", "！"};
+    // Tag the parser gives to the words of an (X ...) tree.
+    private static final String UNPARSED_TAG = "XX";
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
 
     private static TokenizerFactory<CoreLabel> ptbTokenizerFactory = PTBTokenizer.factory(new CoreLabelTokenFactory(),
             "untokenizable=noneKeep");
-    private static String[] parserOptionsEng = {"-maxLength", "80", "-retainTmpSubcategories"};
-    private static String[] parserOptionsCh = {"-maxLength", "80"};
 
     private Function<List<HasWord>, List<HasWord>> escaperCh = ReflectionLoading.loadByReflection("edu.stanford.nlp.trees.international.pennchinese.ChineseEscaper");
 
-    private LexicalizedParser lexicalizedParser;
-    private TreebankLanguagePack tlp;
+    private ModelRegistry models;
 
     private Config config;
 
-    private Map<String, String> adjComparative = new HashMap<String, String>();
-    private Map<String, String> adjSuperlative = new HashMap<String, String>();
+    private PosRules posRules;
+    private FactorFormatter factorFormatter;
 
-    private String treePrintOptions;
+    private TreeSerializer treeSerializer;
+
+    private BoundedParser boundedParser;
+    private ParseEngine parseEngine;
+    private SentenceCache sentenceCache;
+    private TaggerMetrics metrics;
+    private String fingerprint;
 
     public TreeTagger(Config config) {
+        this(config, new TaggerMetrics("tree", config), null);
+    }
+
+    /**
+     * @param factorFormatter Makes a factored sentence from each parse, or null. Its POS rules are shared.
+     */
+    TreeTagger(Config config, TaggerMetrics metrics, FactorFormatter factorFormatter) {
         this.config = config;
 
-        if (config.language == LanguageType.CHINESE) {
-            this.lexicalizedParser = LexicalizedParser.loadModel(config.grammarModel, parserOptionsCh);
-        } else {
-            this.lexicalizedParser = LexicalizedParser.loadModel(config.grammarModel, parserOptionsEng);
+        this.models = new ModelRegistry(config);
+        if (config.language != LanguageType.MIXED) {
+            models.parser(config.language);
         }
 
-        this.tlp = lexicalizedParser.getOp().langpack();
+        this.posRules = (factorFormatter != null) ? factorFormatter.posRules() : new PosRules(config);
+        this.factorFormatter = factorFormatter;
 
-        if ((config.adjFormDictionary != null) && (!"".equals(config.adjFormDictionary))) {
-            try {
-                Reader r = new InputStreamReader(new FileInputStream(config.adjFormDictionary), "UTF-8");
-                BufferedReader br = new BufferedReader(r);
+        this.treeSerializer = new TreeSerializer(true, config.treeStem);
+        this.metrics = metrics;
 
-                String line;
-                while ((line = br.readLine()) != null) {
-                    line = line.trim().toLowerCase();
-                    String[] wordForms = line.split("\t");
-                    if (!adjComparative.containsKey(wordForms[1])) {
-                        adjComparative.put(wordForms[1], wordForms[0]);
-                    }
+        this.boundedParser = new BoundedParser(config, models, metrics);
+        if (config.parseThreads > 1) {
+            parseEngine = new ParseEngine(config.parseThreads, config, models, metrics);
+        }
 
-                    if (!adjSuperlative.containsKey(wordForms[2])) {
-                        adjSuperlative.put(wordForms[2], wordForms[0]);
-                    }
-                }
+        this.fingerprint = SentenceCache.fingerprint(TaggerType.TREE, config.language,
+                models.grammarModel(LanguageType.ENGLISH), models.grammarModel(LanguageType.CHINESE),
+                Arrays.toString(ModelRegistry.parserOptions(LanguageType.ENGLISH, config.parseMaxLength)),
+                Arrays.toString(ModelRegistry.parserOptions(LanguageType.CHINESE, config.parseMaxLength)),
+                config.parseFallback, models.posModel(LanguageType.ENGLISH), models.posModel(LanguageType.CHINESE),
+                config.treeStem,
+                config.spNnPosProcess, config.spVbPosProcess, config.spLemmaProcess, config.adjFormDictionary,
+                config.posRules, config.pretokenized);
+        if (factorFormatter != null) {
+            this.fingerprint = SentenceCache.fingerprint(TaggerType.JOINT, fingerprint, factorFormatter.factorList(),
+                    config.factorDelimiter, config.factorInnerDelimiter);
+        }
 
-                br.close();
-                r.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (config.cacheSize > 0) {
+            sentenceCache = new SentenceCache(config.cacheSize, config.cacheDir, config.cacheDiskSize * 1024L * 1024L,
+                    fingerprint);
         }
+    }
 
-        if (config.treeStem) {
-            treePrintOptions = "stem,removeTopBracket";
-        } else {
-            treePrintOptions = "removeTopBracket";
+    private TreeTagger(TreeTagger base) {
+        this.config = base.config;
+
+        this.models = base.models;
+
+        this.posRules = base.posRules;
+        if (base.factorFormatter != null) {
+            this.factorFormatter = base.factorFormatter.fork();
         }
+
+        this.treeSerializer = new TreeSerializer(true, config.treeStem);
+
+        this.boundedParser = new BoundedParser(config, models, base.metrics);
+        this.parseEngine = base.parseEngine;
+        this.sentenceCache = base.sentenceCache;
+        this.metrics = base.metrics;
+        this.fingerprint = base.fingerprint;
+    }
+
+    @Override
+    public Tagger fork() {
+        return new TreeTagger(this);
     }
 
     @Override
     public void tagSingleLine(String sentence, Writer writer) {
-        TreePrint treePrint = new TreePrint("oneline", treePrintOptions, tlp);
         try {
-            printTree(writer, treePrint, sentence);
-
-            if (config.eofMark) {
-
-                writer.write("__EOF__");
-                writer.write("\n");
-                writer.flush();
-            }
+            writeSingleLine(tagBatch(Collections.singletonList(sentence)).get(0), writer);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    @Override
+    public void writeSingleLine(TaggedLine taggedLine, Writer writer) throws IOException {
+        writeLine(writer, taggedLine);
+
+        if (config.eofMark) {
+            writer.write("__EOF__");
+            writer.write("\n");
+        }
+
+        writer.flush();
+    }
+
+    @Override
+    public String fingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public void printStats(PrintStream out) {
+        metrics.printStats(out);
+        if (sentenceCache != null) {
+            sentenceCache.printStats(out);
+        }
+    }
+
+    @Override
+    public void close() {
+        metrics.close();
+    }
+
     @Override
     public void tagMultiLine(Reader reader, List<Writer> writers) {
         Writer writer = writers.get(0);
@@ -112,20 +168,26 @@ public class TreeTagger implements Tagger {
         long curTimestamp = System.currentTimeMillis();
         int lineCount = 0;
 
-        BufferedReader br = new BufferedReader(reader);
-        BufferedWriter bw = new BufferedWriter(writer);
-
-        TreePrint treePrint = new TreePrint("oneline", treePrintOptions, tlp);
+        BufferedReader br = CorpusIo.buffered(reader);
+        BufferedWriter bw = CorpusIo.buffered(writer);
 
         try {
-            String sentence;
-            while ((sentence = br.readLine()) != null) {
-                lineCount++;
-
-                printTree(bw, treePrint, sentence);
+            if (config.streamLines) {
+                lineCount = tagLinesStreaming(br, bw);
+            } else {
+                List<String> window = readWindow(br);
+                while (!window.isEmpty()) {
+                    for (TaggedLine taggedLine : tagBatch(window)) {
+                        lineCount++;
+
+                        writeLine(bw, taggedLine);
+
+                        if (lineCount % 500 == 0) {
+                            System.err.println(lineCount + " lines done.");
+                        }
+                    }
 
-                if (lineCount % 500 == 0) {
-                    System.out.println(lineCount + " lines done.");
+                    window = readWindow(br);
                 }
             }
         } catch (IOException e1) {
@@ -141,113 +203,391 @@ public class TreeTagger implements Tagger {
         }
 
         double timeElapsed = (System.currentTimeMillis() - curTimestamp) / 1000.0;
-        System.out.println("Tagging completed. (" + (int) (lineCount / timeElapsed) + " lines/sec)");
+        System.err.println("Tagging completed. (" + (int) (lineCount / timeElapsed) + " lines/sec)");
+        if (parseEngine != null) {
+            parseEngine.printUsage(System.err);
+        }
     }
 
-    private void printTree(Writer writer, TreePrint treePrint, String sentence) throws IOException {
-        Reader stringReader = new StringReader(sentence);
-        DocumentPreprocessor docPreprocessor = new DocumentPreprocessor(stringReader);
-        docPreprocessor.setTokenizerFactory(ptbTokenizerFactory);
-        docPreprocessor.setSentenceFinalPuncWords(DEFAULT_SENTENCE_DELIMS);
-        if (config.language == LanguageType.CHINESE) {
-            docPreprocessor.setEscaper(escaperCh);
+    /**
+     * Parse each line sentence by sentence while it is read, and write every tree as soon as it is parsed. Only the
+     * first tree of a line is held back, until it is known whether the line has more than one sentence.
+     *
+     * @return Number of lines.
+     */
+    private int tagLinesStreaming(BufferedReader br, Writer writer) throws IOException {
+        LineStream lineStream = new LineStream(br, STREAM_BUFFER_SIZE);
+        int lineCount = 0;
+        while (lineStream.nextLine()) {
+            lineCount++;
+            if (config.pretokenized) {
+                // A pretokenized line is one sentence.
+                writeLine(writer, tagBatch(Collections.singletonList(lineStream.readRest())).get(0));
+            } else {
+                LanguageType language = models.route(lineStream.prefix());
+                metrics.addLine();
+                streamLine(writer, language, documentPreprocessor(lineStream.line(), language).iterator());
+            }
+
+            if (lineCount % 500 == 0) {
+                System.err.println(lineCount + " lines done.");
+            }
         }
+        return lineCount;
+    }
 
-        try {
-            String outString = "";
-            int sentenceCount = 0;
-            for (List<HasWord> s : docPreprocessor) {
-                sentenceCount++;
-                Tree parse = lexicalizedParser.parse(s);
-                customizeTree(parse, null);
-
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                PrintWriter pw = new PrintWriter(baos, true);
-                treePrint.printTree(parse, pw);
-                pw.flush();
-
-                String content = baos.toString(StandardCharsets.UTF_8.name());
-                content = content.trim() + "\n";
-                outString += content;
+    /**
+     * Write the trees of one line the same way as {@link #writeTrees}.
+     */
+    private void streamLine(Writer writer, LanguageType language, Iterator<List<HasWord>> it) throws IOException {
+        TaggedSentence first = null;
+        int sentenceCount = 0;
+        while (true) {
+            long start = System.nanoTime();
+            if (!it.hasNext()) {
+                break;
             }
+            List<HasWord> s = it.next();
+            metrics.addSentence(s.size());
+            metrics.record(TaggerMetrics.Stage.TOKENIZE, System.nanoTime() - start);
 
-            if (sentenceCount > 1) {
-                if (config.autoSplitSentence) {
-                    writer.write(outString);
-                } else {
-                    writer.write("(MULTIS " + outString.replaceAll("(\\r?\\n)+", " ").trim() + ")\n");
-                }
+            TaggedSentence parsedSentence = parseSentences(language, Collections.singletonList(s)).get(0);
+            sentenceCount++;
+
+            start = System.nanoTime();
+            if (config.autoSplitSentence) {
+                parsedSentence.write(treeSerializer, writer);
+                writer.write("\n");
             } else if (sentenceCount == 1) {
-                writer.write(outString);
+                first = parsedSentence;
+            } else {
+                if (sentenceCount == 2) {
+                    writer.write("(MULTIS ");
+                    first.write(treeSerializer, writer);
+                    first = null;
+                }
+                writer.write(" ");
+                parsedSentence.write(treeSerializer, writer);
             }
+            metrics.record(TaggerMetrics.Stage.WRITE, System.nanoTime() - start);
+        }
 
-            writer.flush();
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (first != null) {
+            first.write(treeSerializer, writer);
+            writer.write("\n");
+        } else if ((sentenceCount > 1) && !config.autoSplitSentence) {
+            writer.write(")\n");
         }
+    }
 
-        stringReader.close();
+    /**
+     * @return The next lines to be tagged together, or an empty list at the end of the input.
+     */
+    List<String> readWindow(BufferedReader br) throws IOException {
+        // Without parse threads there is nothing to share within a window, so lines are tagged one at a time.
+        int windowSize = (parseEngine != null) ? config.parseWindow : 1;
+        List<String> window = new ArrayList<String>(windowSize);
+        String line;
+        while ((window.size() < windowSize) && ((line = readLine(br)) != null)) {
+            window.add(line);
+        }
+        return window;
     }
 
-    private void customizeTree(Tree t, Tree preTerminalNode) {
-        if (t.isPreTerminal()) {
-            preTerminalNode = t;
+    /**
+     * Parse the sentences of all lines in the batch together, one group per language, on the parse threads if there
+     * are any.
+     */
+    @Override
+    public List<TaggedLine> tagBatch(List<String> lines) throws IOException {
+        LanguageType[] lineLanguages = new LanguageType[lines.size()];
+        List<List<List<HasWord>>> lineSentences = new ArrayList<List<List<HasWord>>>(lines.size());
+        for (int i = 0; i < lineLanguages.length; i++) {
+            lineLanguages[i] = models.route(lines.get(i));
+            lineSentences.add(splitSentences(lines.get(i), lineLanguages[i]));
         }
 
-        if (t.isLeaf()) {
-            customizeStem(t, preTerminalNode);
-            customizeFactor(t, preTerminalNode);
-        } else {
-            for (Tree kid : t.children()) {
-                customizeTree(kid, preTerminalNode);
+        List<TaggedLine> taggedLines = new ArrayList<TaggedLine>(
+                Collections.<TaggedLine>nCopies(lines.size(), null));
+        for (LanguageType language : models.languages()) {
+            List<List<HasWord>> sentences = new ArrayList<List<HasWord>>();
+            for (int i = 0; i < lineLanguages.length; i++) {
+                if (lineLanguages[i] == language) {
+                    sentences.addAll(lineSentences.get(i));
+                }
+            }
+
+            List<TaggedSentence> parsedSentences = parseSentences(language, sentences);
+            int from = 0;
+            for (int i = 0; i < lineLanguages.length; i++) {
+                if (lineLanguages[i] == language) {
+                    int sentenceCount = lineSentences.get(i).size();
+                    taggedLines.set(i, new TaggedLine(language, parsedSentences.subList(from, from + sentenceCount)));
+                    from += sentenceCount;
+                }
             }
         }
-    }
 
-    private void customizeFactor(Tree t, Tree preTerminalNode) {
-        String factor = preTerminalNode.label().value();
-        String word = t.label().value();
+        return taggedLines;
+    }
 
-        if (factor != null) {
-            if (config.spNnPosProcess) {
-                if (factor.startsWith("NN")) {
-                    preTerminalNode.label().setValue("NN");
+    private List<List<HasWord>> splitSentences(String line, LanguageType language) {
+        metrics.addLine();
+        long start = System.nanoTime();
+        List<List<HasWord>> sentences = new ArrayList<List<HasWord>>();
+        if (config.pretokenized) {
+            // A new list for every line, as the sentences of a whole window are parsed together.
+            List<HasWord> s = PretokenizedSplitter.split(line, new ArrayList<HasWord>());
+            if (!s.isEmpty()) {
+                if (language == LanguageType.CHINESE) {
+                    s = escaperCh.apply(s);
                 }
+                sentences.add(s);
+                metrics.addSentence(s.size());
             }
+            metrics.record(TaggerMetrics.Stage.TOKENIZE, System.nanoTime() - start);
+            return sentences;
+        }
+
+        for (List<HasWord> s : documentPreprocessor(new StringReader(line), language)) {
+            sentences.add(s);
+            metrics.addSentence(s.size());
+        }
+        metrics.record(TaggerMetrics.Stage.TOKENIZE, System.nanoTime() - start);
+
+        return sentences;
+    }
 
-            if (config.spVbPosProcess) {
-                if (factor.equals("VBP") || factor.equals("VBZ")) {
-                    preTerminalNode.label().setValue("VB");
+    /**
+     * @return The sentences of a reader, split while they are read.
+     */
+    private DocumentPreprocessor documentPreprocessor(Reader reader, LanguageType language) {
+        DocumentPreprocessor docPreprocessor = new DocumentPreprocessor(reader);
+        docPreprocessor.setTokenizerFactory(ptbTokenizerFactory);
+        docPreprocessor.setSentenceFinalPuncWords(DEFAULT_SENTENCE_DELIMS);
+        if (language == LanguageType.CHINESE) {
+            docPreprocessor.setEscaper(escaperCh);
+        }
+        return docPreprocessor;
+    }
+
+    private List<Tree> parse(LexicalizedParser parser, LanguageType language, List<List<HasWord>> sentences)
+            throws IOException {
+        if ((parseEngine != null) && (sentences.size() > 1)) {
+            return parseEngine.parse(parser, language, sentences);
+        }
+
+        List<Tree> trees = new ArrayList<Tree>(sentences.size());
+        for (List<HasWord> s : sentences) {
+            long start = System.nanoTime();
+            trees.add(boundedParser.parse(parser, language, s));
+            metrics.recordSentence(TaggerMetrics.Stage.PARSE, s, System.nanoTime() - start);
+        }
+        return trees;
+    }
+
+    /**
+     * Parse the sentences, or take their printed trees from the sentence cache.
+     */
+    private List<TaggedSentence> parseSentences(LanguageType language, List<List<HasWord>> sentences)
+            throws IOException {
+        TaggedSentence[] parsedSentences = new TaggedSentence[sentences.size()];
+        List<List<HasWord>> toParse = new ArrayList<List<HasWord>>();
+        List<Integer> toParseIndices = new ArrayList<Integer>();
+        List<String> toParseKeys = new ArrayList<String>();
+        for (int i = 0; i < parsedSentences.length; i++) {
+            List<HasWord> s = sentences.get(i);
+            String key = null;
+            if (sentenceCache != null) {
+                key = cacheKey(language, s);
+                String cached = sentenceCache.get(key);
+                if (cached != null) {
+                    parsedSentences[i] = fromCache(language, s, cached);
+                    if (parsedSentences[i] != null) {
+                        continue;
+                    }
                 }
             }
+
+            toParse.add(s);
+            toParseIndices.add(i);
+            toParseKeys.add(key);
         }
 
-        if (word != null) {
-            if (config.language == LanguageType.CHINESE) {
-                if ((factor != null) && factor.startsWith("PU")) {
-                    if ("。".equals(word) || "？".equals(word) || "！".equals(word))
-                        preTerminalNode.label().setValue(word);
+        if (toParse.isEmpty()) {
+            return Arrays.asList(parsedSentences);
+        }
+
+        LexicalizedParser parser = models.parser(language);
+        TreebankLanguagePack tlp = parser.getOp().langpack();
+        List<Tree> trees = parse(parser, language, toParse);
+        for (int i = 0; i < trees.size(); i++) {
+            long start = System.nanoTime();
+            Tree parse = trees.get(i);
+            boolean isCacheable = !BoundedParser.isTimedOut(parse);
+            // The factors are made before the POS rules change the preterminals.
+            TaggedSentence factored = null;
+            if (factorFormatter != null) {
+                factored = factorFormatter.format(language, factorTags(language, toParse.get(i), parse));
+            }
+            customizeTree(parse, null, language);
+            parse = treeSerializer.prepare(parse, tlp);
+
+            String key = toParseKeys.get(i);
+            String printedTree = null;
+            if ((key != null) && isCacheable) {
+                printedTree = treeSerializer.toString(parse);
+                if (factored != null) {
+                    sentenceCache.put(key, printedTree + "\n" + FactorFormatter.cacheEntry(factored));
+                } else {
+                    sentenceCache.put(key, printedTree);
                 }
             }
+            parsedSentences[toParseIndices.get(i)] = new TaggedSentence(toParse.get(i).size(), parse, printedTree,
+                    factored);
+            metrics.recordSentence(TaggerMetrics.Stage.LEMMA, toParse.get(i), System.nanoTime() - start);
         }
+
+        return Arrays.asList(parsedSentences);
     }
 
-    private void customizeStem(Tree t, Tree preTerminalNode) {
-        if (config.spLemmaProcess) {
-            String factor = preTerminalNode.label().value();
-            String word = t.label().value();
+    /**
+     * @return The words and tags of a parse, for its factored sentence. Words the parser tagged XX, as it could not parse
+     * them, are tagged by the POS model instead if one is set.
+     */
+    private List<TaggedWord> factorTags(LanguageType language, List<HasWord> sentence, Tree parse) {
+        List<TaggedWord> taggedWords = parse.taggedYield();
+        boolean isUnparsed = false;
+        for (TaggedWord tw : taggedWords) {
+            if (UNPARSED_TAG.equals(tw.tag())) {
+                isUnparsed = true;
+                break;
+            }
+        }
+        if (!isUnparsed) {
+            return taggedWords;
+        }
 
-            if ("JJR".equals(factor) || "RBR".equals(factor)) { // Comparative forms
-                if (adjComparative.containsKey(word)) {
-                    t.label().setValue(adjComparative.get(word));
-                }
-            } else if ("JJS".equals(factor) || "RBS".equals(factor)) { // Superlative forms.
-                if (adjSuperlative.containsKey(word)) {
-                    t.label().setValue(adjSuperlative.get(word));
-                }
+        String posModel = models.posModel(language);
+        if ((posModel == null) || "".equals(posModel)) {
+            System.err.println("Unparsed words keep the XX tag in the factors: " + Sentence.listToString(sentence));
+            return taggedWords;
+        }
+
+        long start = System.nanoTime();
+        List<TaggedWord> modelTags = models.posTagger(language).tagSentence(sentence);
+        metrics.recordSentence(TaggerMetrics.Stage.TAG, sentence, System.nanoTime() - start);
+        if (modelTags.size() != taggedWords.size()) {
+            System.err.println("Unparsed words keep the XX tag in the factors: " + Sentence.listToString(sentence));
+            return taggedWords;
+        }
+
+        for (int i = 0; i < taggedWords.size(); i++) {
+            TaggedWord tw = taggedWords.get(i);
+            if (UNPARSED_TAG.equals(tw.tag())) {
+                taggedWords.set(i, new TaggedWord(tw.word(), modelTags.get(i).tag()));
             }
         }
+        return taggedWords;
+    }
+
+    /**
+     * Rebuild a sentence from its cache entry, which is the printed tree, followed on the next lines by the factored
+     * sentence if there is one.
+     *
+     * @return The sentence, or null if the cached entry does not match the sentence.
+     */
+    private TaggedSentence fromCache(LanguageType language, List<HasWord> sentence, String cached) {
+        if (factorFormatter == null) {
+            return new TaggedSentence(sentence.size(), null, cached);
+        }
+
+        int idx = cached.indexOf('\n');
+        if (idx < 0) {
+            return null;
+        }
+        TaggedSentence factored = factorFormatter.fromCache(language, sentence, cached.substring(idx + 1));
+        if (factored == null) {
+            return null;
+        }
+        return new TaggedSentence(sentence.size(), null, cached.substring(0, idx), factored);
+    }
+
+    private String readLine(BufferedReader br) throws IOException {
+        long start = System.nanoTime();
+        String line = br.readLine();
+        if (line != null) {
+            metrics.record(TaggerMetrics.Stage.READ, System.nanoTime() - start);
+        }
+        return line;
+    }
+
+    void writeLine(Writer writer, TaggedLine taggedLine) throws IOException {
+        long start = System.nanoTime();
+        writeTrees(writer, taggedLine.sentences());
+        metrics.record(TaggerMetrics.Stage.WRITE, System.nanoTime() - start);
+    }
+
+    private void writeTrees(Writer writer, List<TaggedSentence> parsedSentences) throws IOException {
+        int sentenceCount = parsedSentences.size();
+        boolean isMultis = (sentenceCount > 1) && !config.autoSplitSentence;
+
+        if (isMultis) {
+            writer.write("(MULTIS ");
+        }
+
+        for (int i = 0; i < sentenceCount; i++) {
+            parsedSentences.get(i).write(treeSerializer, writer);
+
+            if (!isMultis) {
+                writer.write("\n");
+            } else if (i < sentenceCount - 1) {
+                writer.write(" ");
+            }
+        }
+
+        if (isMultis) {
+            writer.write(")\n");
+        }
+    }
+
+    private static String cacheKey(LanguageType language, List<HasWord> sentence) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(language.ordinal());
+        for (HasWord word : sentence) {
+            sb.append(' ');
+            sb.append(word.word());
+        }
+        return sb.toString();
+    }
+
+    private void customizeTree(Tree t, Tree preTerminalNode, LanguageType language) {
+        if (t.isPreTerminal()) {
+            preTerminalNode = t;
+        }
+
+        if (t.isLeaf()) {
+            applyPosRules(t, preTerminalNode, language);
+        } else {
+            for (Tree kid : t.children()) {
+                customizeTree(kid, preTerminalNode, language);
+            }
+        }
+    }
+
+    private void applyPosRules(Tree t, Tree preTerminalNode, LanguageType language) {
+        String tag = preTerminalNode.label().value();
+        String word = t.label().value();
+        if ((tag == null) || (word == null)) {
+            return;
+        }
+
+        PosRules.TagRule rule = posRules.lookup(language, tag);
+        // The built-in lemma rules only exist with spLemmaProcess, so only rules file lemmas apply without it.
+        String lemma = rule.lemma(word);
+        if (lemma != null) {
+            t.label().setValue(lemma);
+        }
+        preTerminalNode.label().setValue(rule.tag(word));
     }
 }
@@ -0,0 +1,213 @@
+package com.yullage.nlp.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads UTF-8 text from a channel into one large byte buffer and finds line breaks on the bytes, so that each line is
+ * decoded exactly once, straight into its String. Lines end at "\n", "\r" or "\r\n", as with
+ * {@link BufferedReader#readLine()}, and malformed input is replaced the same way as by an InputStreamReader.
+ * <p>
+ * It is a BufferedReader so that the taggers use it as is instead of wrapping it in another buffer. Not thread safe.
+ *
+ * @author Yu-chun Huang
+ */
+public class Utf8LineReader extends BufferedReader {
+    private final ReadableByteChannel channel;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private byte[] buf;
+    private int pos = 0;
+    private int limit = 0;
+    private boolean isEof = false;
+    // The decoder has been flushed at the end of the input, and must not decode again.
+    private boolean isFlushed = false;
+    private int pendingChar = -1;
+
+    /**
+     * @param channel    Channel to read from. It is closed with the reader.
+     * @param bufferSize Initial buffer size in bytes. The buffer grows to hold the longest line.
+     */
+    public Utf8LineReader(ReadableByteChannel channel, int bufferSize) {
+        super(new StringReader(""), 1);
+        this.channel = channel;
+        this.buf = new byte[Math.max(bufferSize, 16)];
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        if (pendingChar >= 0) {
+            // The char left over by read().
+            char c = (char) pendingChar;
+            pendingChar = -1;
+            String rest = readLine();
+            return (rest == null) ? String.valueOf(c) : c + rest;
+        }
+
+        int scan = pos;
+        while (true) {
+            for (int i = scan; i < limit; i++) {
+                byte b = buf[i];
+                if ((b == '\n') || (b == '\r')) {
+                    if ((b == '\r') && (i + 1 == limit) && !isEof) {
+                        // Need the next byte to tell "\r" from "\r\n".
+                        break;
+                    }
+
+                    String line = new String(buf, pos, i - pos, StandardCharsets.UTF_8);
+                    pos = i + 1;
+                    if ((b == '\r') && (pos < limit) && (buf[pos] == '\n')) {
+                        pos++;
+                    }
+                    return line;
+                }
+            }
+
+            if (isEof) {
+                if (pos == limit) {
+                    return null;
+                }
+                String line = new String(buf, pos, limit - pos, StandardCharsets.UTF_8);
+                pos = limit;
+                return line;
+            }
+
+            int scanned = Math.max(0, limit - pos - 1);
+            fill();
+            scan = pos + scanned;
+        }
+    }
+
+    /**
+     * Move the unread bytes to the front of the buffer, grow it if it is full, and read more bytes.
+     */
+    private void fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            byte[] newBuf = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, newBuf, 0, limit);
+            buf = newBuf;
+        }
+
+        int n = channel.read(ByteBuffer.wrap(buf, limit, buf.length - limit));
+        if (n < 0) {
+            isEof = true;
+        } else {
+            limit += n;
+        }
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pendingChar >= 0) {
+            cbuf[off] = (char) pendingChar;
+            pendingChar = -1;
+            return 1;
+        }
+        if (len == 1) {
+            int c = read();
+            if (c < 0) {
+                return -1;
+            }
+            cbuf[off] = (char) c;
+            return 1;
+        }
+
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        while (true) {
+            if (!isFlushed) {
+                ByteBuffer in = ByteBuffer.wrap(buf, pos, limit - pos);
+                CoderResult result = decoder.decode(in, out, isEof);
+                pos = in.position();
+                // A truncated sequence at the end is replaced by the decoder; flush only once all of it is decoded.
+                if (isEof && result.isUnderflow() && decoder.flush(out).isUnderflow()) {
+                    isFlushed = true;
+                }
+            }
+
+            int n = out.position() - off;
+            if (n > 0) {
+                return n;
+            }
+            if (isFlushed) {
+                return -1;
+            }
+            fill();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pendingChar >= 0) {
+            int c = pendingChar;
+            pendingChar = -1;
+            return c;
+        }
+
+        // Decode two chars, so that a surrogate pair fits, and keep the second one for the next call.
+        char[] c = new char[2];
+        int n = read(c, 0, 2);
+        if (n < 0) {
+            return -1;
+        }
+        if (n == 2) {
+            pendingChar = c[1];
+        }
+        return c[0];
+    }
+
+    @Override
+    public boolean ready() {
+        return (pendingChar >= 0) || (pos < limit);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) throws IOException {
+        throw new IOException("mark() not supported");
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("reset() not supported");
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        char[] skipBuf = new char[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int r = read(skipBuf, 0, (int) Math.min(n - skipped, skipBuf.length));
+            if (r < 0) {
+                break;
+            }
+            skipped += r;
+        }
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
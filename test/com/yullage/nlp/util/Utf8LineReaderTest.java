@@ -0,0 +1,79 @@
+package com.yullage.nlp.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Input which ends in the middle of a UTF-8 sequence.
+ *
+ * @author Yu-chun Huang
+ */
+public class Utf8LineReaderTest {
+    // "abc\ndef" followed by the first two bytes of "中".
+    private static final byte[] TRUNCATED = {'a', 'b', 'c', '\n', 'd', 'e', 'f', (byte) 0xe4, (byte) 0xb8};
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("utf8-line-reader", ".txt");
+        Files.write(file, TRUNCATED);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private Utf8LineReader open() throws IOException {
+        return new Utf8LineReader(FileChannel.open(file, StandardOpenOption.READ), 16);
+    }
+
+    @Test
+    public void readLineReplacesTruncatedSequence() throws IOException {
+        Utf8LineReader reader = open();
+        assertEquals("abc", reader.readLine());
+        assertEquals("def�", reader.readLine());
+        assertNull(reader.readLine());
+        reader.close();
+    }
+
+    @Test
+    public void readReturnsEndOfInputAfterFlush() throws IOException {
+        Utf8LineReader reader = open();
+        StringBuilder text = new StringBuilder();
+        char[] cbuf = new char[4];
+        int n;
+        while ((n = reader.read(cbuf, 0, cbuf.length)) >= 0) {
+            text.append(cbuf, 0, n);
+        }
+        assertEquals("abc\ndef�", text.toString());
+        assertEquals(-1, reader.read(cbuf, 0, cbuf.length));
+        assertEquals(-1, reader.read());
+        reader.close();
+    }
+
+    @Test
+    public void lineStreamReadsTruncatedSequence() throws IOException {
+        Utf8LineReader reader = open();
+        LineStream lines = new LineStream(reader, 64);
+        assertTrue(lines.nextLine());
+        assertEquals("abc", lines.readRest());
+        assertTrue(lines.nextLine());
+        assertEquals("def�", lines.readRest());
+        assertFalse(lines.nextLine());
+        reader.close();
+    }
+}